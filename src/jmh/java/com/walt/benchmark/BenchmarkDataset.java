@@ -0,0 +1,72 @@
+package com.walt.benchmark;
+
+import com.walt.WaltApplication;
+import com.walt.WaltService;
+import com.walt.dao.CityRepository;
+import com.walt.dao.CustomerRepository;
+import com.walt.dao.RestaurantRepository;
+import com.walt.generator.DatasetSpec;
+import com.walt.generator.GeneratedDataset;
+import com.walt.generator.SyntheticDataGenerator;
+import com.walt.model.City;
+import com.walt.model.Customer;
+import com.walt.model.Restaurant;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Starts the application on a fresh in-memory database, filled by the {@link SyntheticDataGenerator}
+ * with the given amount of cities, drivers and past deliveries.
+ */
+class BenchmarkDataset {
+
+    final ConfigurableApplicationContext context;
+    final WaltService waltService;
+    final List<City> cities = new ArrayList<>();
+    final List<Customer> customers = new ArrayList<>();
+    final List<Restaurant> restaurants = new ArrayList<>();
+    long firstFreeHour;
+
+    BenchmarkDataset(int cityCount, int driversPerCity, int deliveriesPerDriver, String... properties) {
+        this(cityCount, driversPerCity, deliveriesPerDriver, null, properties);
+    }
+
+    // the post processor, if any, is added before the beans are created, e.g. to wrap the data source
+    BenchmarkDataset(int cityCount, int driversPerCity, int deliveriesPerDriver, BeanPostProcessor postProcessor, String... properties) {
+        SpringApplicationBuilder builder = new SpringApplicationBuilder(WaltApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID(), "logging.level.root=WARN");
+        if (postProcessor != null){
+            builder.initializers(context -> context.getBeanFactory().addBeanPostProcessor(postProcessor));
+        }
+        // passed like command line arguments, so they override application.properties
+        context = builder.run(Arrays.stream(properties).map(property -> "--" + property).toArray(String[]::new));
+        // the functional tests declare a WaltService of their own, which is on the benchmark's classpath too
+        waltService = context.getBean("waltServiceImpl", WaltService.class);
+        seed(cityCount, driversPerCity, deliveriesPerDriver);
+    }
+
+    void close() {
+        context.close();
+    }
+
+    private void seed(int cityCount, int driversPerCity, int deliveriesPerDriver) {
+        // no skew, so every city gets the same drivers and every driver the same amount of deliveries
+        DatasetSpec spec = new DatasetSpec(42, cityCount, cityCount * driversPerCity, cityCount, cityCount,
+                (long) cityCount * driversPerCity * deliveriesPerDriver, 0, DatasetSpec.DEFAULT_END_TIME);
+        GeneratedDataset generated = context.getBean(SyntheticDataGenerator.class).generate(spec);
+        firstFreeHour = generated.getFirstFreeHour();
+        for (int c = 0; c < cityCount; c++){
+            cities.add(context.getBean(CityRepository.class).findByName("city-" + c));
+            customers.add(context.getBean(CustomerRepository.class).findByName("customer-" + c + "-0"));
+            restaurants.add(context.getBean(RestaurantRepository.class).findByName("restaurant-" + c + "-0"));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.walt.benchmark;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the history of a driver, reporting next to the time how many statements ran, how many entities were
+ * loaded and how many rows and bytes the JDBC driver returned per call, which is what lazy associations on
+ * Delivery cut down. The eager variant is the baseline: it loads the deliveries and then the driver, restaurant
+ * and customer of each one by id, with their cities, like the EAGER mapping's secondary selects did. The
+ * second-level cache is off, as it was before the mapping changed, so those selects reach the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeliveryFetchBenchmark {
+
+    private static final String DELIVERIES_QUERY = "select d from Delivery d where d.driver = :driver";
+
+    @Param({"10", "1000"})
+    int deliveriesPerDriver;
+
+    private BenchmarkDataset dataset;
+    private DeliveryRepository deliveryRepository;
+    private EntityManagerFactory entityManagerFactory;
+    private Driver driver;
+    private Statistics statistics;
+    private FetchCountingDataSource fetches;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fetches = new FetchCountingDataSource();
+        dataset = new BenchmarkDataset(5, 20, deliveriesPerDriver, fetches,
+                "spring.jpa.properties.hibernate.generate_statistics=true",
+                "spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+                "spring.jpa.properties.hibernate.cache.use_query_cache=false");
+        deliveryRepository = dataset.context.getBean(DeliveryRepository.class);
+        driver = dataset.context.getBean(DriverRepository.class).findByName("driver-0-0");
+        entityManagerFactory = dataset.context.getBean(EntityManagerFactory.class);
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataset.close();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class FetchCounters {
+        public long statements;
+        public long entitiesLoaded;
+        public long rows;
+        public long bytes;
+        public long calls;
+
+        public double statementsPerCall() {
+            return calls == 0 ? 0 : (double) statements / calls;
+        }
+
+        public double entitiesLoadedPerCall() {
+            return calls == 0 ? 0 : (double) entitiesLoaded / calls;
+        }
+
+        public double rowsPerCall() {
+            return calls == 0 ? 0 : (double) rows / calls;
+        }
+
+        public double bytesPerCall() {
+            return calls == 0 ? 0 : (double) bytes / calls;
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            statements = 0;
+            entitiesLoaded = 0;
+            rows = 0;
+            bytes = 0;
+            calls = 0;
+        }
+    }
+
+    @Benchmark
+    public List<Delivery> findAllDeliveriesByDriver(FetchCounters counters) {
+        Fetch fetch = new Fetch();
+        List<Delivery> deliveries = deliveryRepository.findAllDeliveriesByDriver(driver);
+        fetch.count(counters);
+        return deliveries;
+    }
+
+    @Benchmark
+    public List<Delivery> findAllDeliveriesByDriverEagerly(FetchCounters counters) {
+        Fetch fetch = new Fetch();
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            List<Delivery> deliveries = entityManager.createQuery(DELIVERIES_QUERY, Delivery.class)
+                    .setParameter("driver", driver)
+                    .getResultList();
+            // one select per driver, restaurant and customer that isn't loaded yet, each joining its city
+            for (Delivery delivery: deliveries){
+                Hibernate.initialize(delivery.getDriver());
+                Hibernate.initialize(delivery.getRestaurant());
+                Hibernate.initialize(delivery.getCustomer());
+            }
+            fetch.count(counters);
+            return deliveries;
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    // what the statistics and the data source counted when a call started, so its own share can be added up
+    private class Fetch {
+        private final long statements = statistics.getPrepareStatementCount();
+        private final long entitiesLoaded = statistics.getEntityLoadCount();
+        private final long rows = fetches.getRows();
+        private final long bytes = fetches.getBytes();
+
+        void count(FetchCounters counters) {
+            counters.statements += statistics.getPrepareStatementCount() - statements;
+            counters.entitiesLoaded += statistics.getEntityLoadCount() - entitiesLoaded;
+            counters.rows += fetches.getRows() - rows;
+            counters.bytes += fetches.getBytes() - bytes;
+            counters.calls++;
+        }
+    }
+}
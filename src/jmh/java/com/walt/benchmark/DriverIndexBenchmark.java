@@ -0,0 +1,81 @@
+package com.walt.benchmark;
+
+import com.walt.exceptions.CustomerDoesntExistException;
+import com.walt.exceptions.DifferentCityException;
+import com.walt.exceptions.NoAvailableDriverException;
+import com.walt.index.DriverAvailabilityIndex;
+import com.walt.index.DriverLoadIndex;
+import com.walt.model.Driver;
+import com.walt.model.HourSlot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two lookups behind driver assignment on their own: the drivers booked in a city's hour
+ * (what findAvailableDrivers used to query) and the least busy of the free ones (findLeastBusyDriver).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DriverIndexBenchmark {
+
+    @Param({"5", "50"})
+    int cities;
+    @Param({"10", "100"})
+    int driversPerCity;
+    @Param({"0", "100"})
+    int deliveriesPerDriver;
+
+    private BenchmarkDataset dataset;
+    private DriverAvailabilityIndex availabilityIndex;
+    private DriverLoadIndex loadIndex;
+    private Long cityId;
+    private Date halfBookedHour;
+    private DriverAvailabilityIndex.BookedDrivers bookedDrivers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        dataset = new BenchmarkDataset(cities, driversPerCity, deliveriesPerDriver);
+        availabilityIndex = dataset.context.getBean(DriverAvailabilityIndex.class);
+        loadIndex = dataset.context.getBean(DriverLoadIndex.class);
+        cityId = dataset.cities.get(0).getId();
+        // the least busy half of the city is booked, so the scan has to skip over them
+        halfBookedHour = HourSlot.start(dataset.firstFreeHour);
+        for (int i = 0; i < driversPerCity / 2; i++){
+            dataset.waltService.createOrderAndAssignDriver(dataset.customers.get(0), dataset.restaurants.get(0), halfBookedHour);
+        }
+        bookedDrivers = availabilityIndex.bookedDrivers(cityId, halfBookedHour);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataset.close();
+    }
+
+    @Benchmark
+    public DriverAvailabilityIndex.BookedDrivers findAvailableDrivers() {
+        return availabilityIndex.bookedDrivers(cityId, halfBookedHour);
+    }
+
+    @Benchmark
+    public Driver findLeastBusyDriver() {
+        return loadIndex.leastBusy(cityId, driver -> !bookedDrivers.contains(driver.getId()));
+    }
+}
@@ -0,0 +1,86 @@
+package com.walt.benchmark;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps the application's data source so every row the JDBC driver returns is counted, along with the bytes of
+ * the columns that were read from it: strings by their UTF-8 length, other values as 8 bytes. H2 runs in process,
+ * so this stands in for what would have crossed the wire.
+ */
+class FetchCountingDataSource implements BeanPostProcessor {
+
+    private static final Set<Class<?>> WRAPPED = new HashSet<>(Arrays.asList(
+            Connection.class, Statement.class, PreparedStatement.class, CallableStatement.class, ResultSet.class));
+
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    long getRows() {
+        return rows.sum();
+    }
+
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof DataSource)){
+            return bean;
+        }
+        // still closeable, so the pool is shut down with the context
+        Class<?>[] types = bean instanceof Closeable ? new Class<?>[]{DataSource.class, Closeable.class} : new Class<?>[]{DataSource.class};
+        return wrap(bean, types);
+    }
+
+    private Object wrap(Object target, Class<?>... types) {
+        return Proxy.newProxyInstance(FetchCountingDataSource.class.getClassLoader(), types,
+                (proxy, method, args) -> invoke(target, method, args));
+    }
+
+    private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch (InvocationTargetException e){
+            throw e.getCause();
+        }
+        if (target instanceof ResultSet){
+            count(method, args, result);
+        }
+        return result != null && WRAPPED.contains(method.getReturnType()) ? wrap(result, method.getReturnType()) : result;
+    }
+
+    // a getter that takes a column is a value read from the current row
+    private void count(Method method, Object[] args, Object value) {
+        if (method.getName().equals("next")){
+            if (Boolean.TRUE.equals(value)){
+                rows.increment();
+            }
+        } else if (method.getName().startsWith("get") && args != null && args.length > 0 && value != null){
+            if (value instanceof String){
+                bytes.add(((String) value).getBytes(StandardCharsets.UTF_8).length);
+            } else if (value instanceof byte[]){
+                bytes.add(((byte[]) value).length);
+            } else {
+                bytes.add(8);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.walt.benchmark;
+
+import com.walt.exceptions.CustomerDoesntExistException;
+import com.walt.exceptions.DifferentCityException;
+import com.walt.exceptions.NoAvailableDriverException;
+import com.walt.model.City;
+import com.walt.model.Delivery;
+import com.walt.model.DriverDistance;
+import com.walt.model.HourSlot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WaltServiceBenchmark {
+
+    @Param({"5", "50"})
+    int cities;
+    @Param({"10", "100"})
+    int driversPerCity;
+    @Param({"0", "100"})
+    int deliveriesPerDriver;
+
+    private BenchmarkDataset dataset;
+    private long orders;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataset = new BenchmarkDataset(cities, driversPerCity, deliveriesPerDriver);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataset.close();
+    }
+
+    @Benchmark
+    public Delivery createOrderAndAssignDriver() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        // orders go round the cities and fill every hour before moving to the next one, so a driver is always free
+        long order = orders++;
+        int city = (int) (order % cities);
+        long hour = dataset.firstFreeHour + order / ((long) cities * driversPerCity);
+        return dataset.waltService.createOrderAndAssignDriver(dataset.customers.get(city), dataset.restaurants.get(city), HourSlot.start(hour));
+    }
+
+    @Benchmark
+    public List<DriverDistance> getDriverRankReport() {
+        return dataset.waltService.getDriverRankReport();
+    }
+
+    @Benchmark
+    public List<DriverDistance> getDriverRankReportByCity() {
+        City city = dataset.cities.get((int) (orders++ % cities));
+        return dataset.waltService.getDriverRankReportByCity(city);
+    }
+}
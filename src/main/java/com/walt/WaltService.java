@@ -7,13 +7,41 @@ import com.walt.model.*;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public  interface WaltService{
 
     Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException;
 
+    Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime, String idempotencyKey) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException;
+
+    CompletableFuture<Delivery> createOrderAndAssignDriverAsync(Customer customer, Restaurant restaurant, Date deliveryTime);
+
+    Date findNextAvailableSlot(Customer customer, Restaurant restaurant, Date from, Date to) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException;
+
+    Delivery createOrderAtNextAvailableSlot(Customer customer, Restaurant restaurant, Date from, Date to) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException;
+
+    List<OrderResult> createOrdersAndAssignDrivers(List<OrderRequest> orders);
+
     List<DriverDistance> getDriverRankReport();
 
+    List<DriverDistance> getDriverRankReport(int limit);
+
     List<DriverDistance> getDriverRankReportByCity(City city);
+
+    List<DriverDistance> getDriverRankReportByCity(City city, int limit);
+
+    Stream<DriverDistance> streamDriverRankReport();
+
+    Stream<DriverDistance> streamDriverRankReportByCity(City city);
+
+    RankPage getDriverRankReportPage(RankCursor after, int pageSize);
+
+    RankPage getDriverRankReportPageByCity(City city, RankCursor after, int pageSize);
+
+    List<DriverDistance> getDriverRankReport(Date from, Date to);
+
+    List<DriverDistance> getDriverRankReportByCity(City city, Date from, Date to);
 }
 
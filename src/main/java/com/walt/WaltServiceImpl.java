@@ -4,16 +4,42 @@ import com.walt.dao.*;
 import com.walt.exceptions.CustomerDoesntExistException;
 import com.walt.exceptions.DifferentCityException;
 import com.walt.exceptions.NoAvailableDriverException;
+import com.walt.index.DriverAvailabilityIndex;
+import com.walt.index.DriverDistanceLeaderboard;
+import com.walt.index.DriverDistanceRollups;
+import com.walt.index.DriverLoadIndex;
+import com.walt.index.DriverRankReportCache;
+import com.walt.index.IdempotencyKeyCache;
+import com.walt.index.ReferenceDataCache;
+import com.walt.journal.DeliveryJournal;
+import com.walt.metrics.OrderMetrics;
+import com.walt.metrics.QueryStatistics;
 import com.walt.model.*;
+import com.walt.pipeline.OrderPipeline;
+import io.micrometer.core.instrument.Timer;
+import org.hibernate.exception.ConstraintViolationException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 @Service
 public class WaltServiceImpl implements WaltService {
+
+    private static final int MAX_ASSIGNMENT_ATTEMPTS = 3;
+    private static final String ASYNC_ORDER_CALL = "createOrderAndAssignDriverAsync(Customer,Restaurant,Date)";
+
     @Autowired
     CustomerRepository customerRepository;
     @Autowired
@@ -24,64 +50,253 @@ public class WaltServiceImpl implements WaltService {
     RestaurantRepository restaurantRepository;
     @Autowired
     CityRepository cityRepository;
+    @Autowired
+    DriverAvailabilityIndex availabilityIndex;
+    @Autowired
+    DriverLoadIndex loadIndex;
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+    @Autowired
+    DriverDistanceRollups rollups;
+    @Autowired
+    OrderPipeline orderPipeline;
+    @Autowired
+    ReferenceDataCache referenceDataCache;
+    @Autowired
+    DriverRankReportCache rankReportCache;
+    @Autowired
+    OrderMetrics orderMetrics;
+    @Autowired
+    DeliveryJournal deliveryJournal;
+    @Autowired
+    QueryStatistics queryStatistics;
+    @Autowired
+    IdempotencyKeyCache idempotencyKeys;
 
     // ************************************* createOrderAndAssignDriver ***************************************
     @Override
     public Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
-        if (customer == null || customer.getName() == null || customerRepository.findByName(customer.getName()) == null){
+        return createOrder(customer, restaurant, deliveryTime, null);
+    }
+
+    @Override
+    public Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime, String idempotencyKey) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
+        if (idempotencyKey == null){
+            return createOrder(customer, restaurant, deliveryTime, null);
+        }
+        if (idempotencyKey.length() > Delivery.MAX_IDEMPOTENCY_KEY_LENGTH){
+            throw new IllegalArgumentException("Idempotency keys are at most " + Delivery.MAX_IDEMPOTENCY_KEY_LENGTH + " characters long");
+        }
+        CompletableFuture<Delivery> order = new CompletableFuture<>();
+        CompletableFuture<Delivery> original = idempotencyKeys.putIfAbsent(idempotencyKey, order);
+        if (original != null){
+            orderMetrics.countDuplicateOrder();
+            return deliveryOf(original);
+        }
+        try {
+            // the key may have expired from the cache, or been used on another instance
+            Delivery delivery = deliveryRepository.findByIdempotencyKey(idempotencyKey);
+            if (delivery != null){
+                orderMetrics.countDuplicateOrder();
+            } else {
+                delivery = createOrderWithKey(customer, restaurant, deliveryTime, idempotencyKey);
+            }
+            order.complete(delivery);
+            return delivery;
+        } catch (Throwable e){
+            // whatever went wrong, the retries waiting on the order must be released
+            idempotencyKeys.remove(idempotencyKey, order);
+            order.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Delivery createOrderWithKey(Customer customer, Restaurant restaurant, Date deliveryTime, String idempotencyKey) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
+        try {
+            return createOrder(customer, restaurant, deliveryTime, idempotencyKey);
+        } catch (DataIntegrityViolationException e){
+            if (!isConstraintViolation(e, Delivery.IDEMPOTENCY_KEY_CONSTRAINT)){
+                throw e;
+            }
+            // the same order was saved in the meantime by another instance
+            orderMetrics.countDuplicateOrder();
+            return deliveryRepository.findByIdempotencyKey(idempotencyKey);
+        }
+    }
+
+    // the original order's outcome, waiting a bounded time for it if it's still being assigned
+    private Delivery deliveryOf(CompletableFuture<Delivery> order) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
+        try {
+            return order.get(idempotencyKeys.getWaitMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the original order", e);
+        } catch (TimeoutException e){
+            throw new IllegalStateException("The original order is still being assigned", e);
+        } catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof NoAvailableDriverException){
+                throw (NoAvailableDriverException) cause;
+            }
+            if (cause instanceof CustomerDoesntExistException){
+                throw (CustomerDoesntExistException) cause;
+            }
+            if (cause instanceof DifferentCityException){
+                throw (DifferentCityException) cause;
+            }
+            if (cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error){
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private Delivery createOrder(Customer customer, Restaurant restaurant, Date deliveryTime, String idempotencyKey) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            validateOrder(customer, restaurant);
+            return assignAndSave(customer, restaurant, deliveryTime, idempotencyKey);
+        } catch (CustomerDoesntExistException | DifferentCityException | NoAvailableDriverException e){
+            orderMetrics.countRejectedOrder(e, restaurant == null ? null : restaurant.getCity());
+            throw e;
+        } finally {
+            orderMetrics.stopOrderStage(sample, OrderMetrics.TOTAL);
+        }
+    }
+
+    private void validateOrder(Customer customer, Restaurant restaurant) throws CustomerDoesntExistException, DifferentCityException {
+        if (customer == null || customer.getName() == null || !customerExists(customer)){
             throw new CustomerDoesntExistException();
         }
         if (!customer.getCity().getName().equals(restaurant.getCity().getName())){
             throw new DifferentCityException();
         }
-        Driver driver = findDriver(restaurant.getCity(), deliveryTime);
+    }
+
+    private boolean customerExists(Customer customer) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return referenceDataCache.findCustomer(customer.getName()) != null;
+        } finally {
+            orderMetrics.stopOrderStage(sample, OrderMetrics.CUSTOMER_LOOKUP);
+        }
+    }
+
+    private Delivery assignAndSave(Customer customer, Restaurant restaurant, Date deliveryTime, String idempotencyKey) throws NoAvailableDriverException {
+        Delivery delivery = assignDriver(customer, restaurant, deliveryTime);
+        delivery.setIdempotencyKey(idempotencyKey);
+        for (int attempt = 1; !save(delivery); attempt++){
+            if (attempt == MAX_ASSIGNMENT_ATTEMPTS){
+                throw new NoAvailableDriverException();
+            }
+            delivery = assignDriver(customer, restaurant, deliveryTime);
+            delivery.setIdempotencyKey(idempotencyKey);
+        }
+        return delivery;
+    }
+
+    private Delivery assignDriver(Customer customer, Restaurant restaurant, Date deliveryTime) throws NoAvailableDriverException {
+        Driver driver = claimDriver(restaurant.getCity(), deliveryTime);
         if (driver == null){
             throw new NoAvailableDriverException();
         }
         Delivery delivery = new Delivery(driver, restaurant, customer, deliveryTime);
         delivery.setDistance(getRandomDistance());
-        deliveryRepository.save(delivery);
         return delivery;
     }
 
-    private Driver findDriver(City city, Date deliveryTime) {
-        List<Driver> availableDrivers = findAvailableDrivers(city, deliveryTime);
-        return findLeastBusyDriver(availableDrivers);
+    private Driver claimDriver(City city, Date deliveryTime) {
+        if (availabilityIndex.isSaturated(city.getId(), deliveryTime)){
+            orderMetrics.countFastRejectedOrder(city);
+            return null;
+        }
+        // optimistic claim: if another order took the chosen driver in the meantime, pick again with the fresh bookings
+        while (true){
+            DriverAvailabilityIndex.BookedDrivers bookedDrivers = findBookedDrivers(city, deliveryTime);
+            Driver driver = findLeastBusyDriver(city, bookedDrivers);
+            if (driver == null){
+                // nobody is free in that hour, so the next orders for it are rejected without walking the drivers
+                availabilityIndex.markSaturated(city.getId(), deliveryTime, bookedDrivers);
+                return null;
+            }
+            if (availabilityIndex.tryBook(city.getId(), driver.getId(), deliveryTime)){
+                loadIndex.recordDelivery(driver);
+                return driver;
+            }
+        }
     }
 
-    private List<Driver> findAvailableDrivers(City city, Date deliveryTime) {
-        List <Driver> availableDrivers = new java.util.ArrayList<>(Collections.emptyList());
-        List<Driver> driversInCity = driverRepository.findAllDriversByCity(city);
-        for (Driver driver: driversInCity){
-            if (deliveryRepository.findFirstByDriverAndDeliveryTime(driver, deliveryTime) == null){
-                availableDrivers.add(driver);
+    private void releaseClaim(Delivery delivery) {
+        Driver driver = delivery.getDriver();
+        availabilityIndex.release(driver.getCity().getId(), driver.getId(), delivery.getDeliveryTime());
+        loadIndex.removeDelivery(driver);
+    }
+
+    // saves a delivery whose driver is already claimed, returns false if the driver turned out to be booked outside of the index
+    private boolean save(Delivery delivery) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            if (deliveryJournal.isEnabled()){
+                // with write-behind the claim in the index is the only check, a conflict is found when the journal is flushed
+                deliveryJournal.append(delivery);
+            } else {
+                deliveryRepository.save(delivery);
+            }
+        } catch (DataIntegrityViolationException e){
+            if (!isConstraintViolation(e, Delivery.DRIVER_SLOT_CONSTRAINT)){
+                releaseClaim(delivery);
+                throw e;
             }
+            // the driver was booked for that hour by someone else (e.g. another instance), so the slot stays claimed
+            loadIndex.removeDelivery(delivery.getDriver());
+            return false;
+        } catch (RuntimeException e){
+            releaseClaim(delivery);
+            throw e;
+        } finally {
+            orderMetrics.stopOrderStage(sample, OrderMetrics.SAVE);
         }
-        return availableDrivers;
+        recordDelivery(delivery);
+        return true;
     }
 
-    private Driver findLeastBusyDriver(List<Driver> availableDrivers) {
-        if (availableDrivers.isEmpty()){
-            return null;
-        }
-        Driver leastBusyDriver = availableDrivers.get(0);
-        if (availableDrivers.size() == 1){
-            return leastBusyDriver;
+    private void recordDelivery(Delivery delivery) {
+        leaderboard.recordDelivery(delivery.getDriver(), delivery.getDistance());
+        rollups.recordDelivery(delivery.getRestaurant().getCity().getId(), delivery.getDriver(), delivery.getDeliverySlot(), delivery.getDistance());
+    }
+
+    private boolean isConstraintViolation(DataIntegrityViolationException e, String constraint) {
+        if (!(e.getCause() instanceof ConstraintViolationException)){
+            return false;
         }
-        // if there is more than one available driver in the city, choosing the one who's the least busy
-        int leastBusyDriverAmountOfDeliveries = Integer.MAX_VALUE;
-        for (Driver driver: availableDrivers){
-            int amountOfDeliveries = getDriverAmountOfDeliveries(driver);
-            if (amountOfDeliveries < leastBusyDriverAmountOfDeliveries){
-                leastBusyDriver = driver;
-                leastBusyDriverAmountOfDeliveries = amountOfDeliveries;
-            }
+        String constraintName = ((ConstraintViolationException) e.getCause()).getConstraintName();
+        return constraintName != null && constraintName.toUpperCase().contains(constraint);
+    }
+
+    private Driver findDriver(City city, Date deliveryTime) {
+        return findLeastBusyDriver(city, findBookedDrivers(city, deliveryTime));
+    }
+
+    private DriverAvailabilityIndex.BookedDrivers findBookedDrivers(City city, Date deliveryTime) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return availabilityIndex.bookedDrivers(city.getId(), deliveryTime);
+        } finally {
+            orderMetrics.stopOrderStage(sample, OrderMetrics.AVAILABILITY_SCAN);
         }
-        return leastBusyDriver;
     }
 
-    private int getDriverAmountOfDeliveries(Driver driver) {
-        return deliveryRepository.findAllDeliveriesByDriver(driver).size();
+    private Driver findLeastBusyDriver(City city, DriverAvailabilityIndex.BookedDrivers bookedDrivers) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            // drivers are kept ordered by their amount of deliveries, so the first one that isn't booked is the least busy
+            return loadIndex.leastBusy(city.getId(), driver -> !bookedDrivers.contains(driver.getId()));
+        } finally {
+            orderMetrics.stopOrderStage(sample, OrderMetrics.LEAST_BUSY_SCAN);
+        }
     }
 
     private double getRandomDistance() {
@@ -89,41 +304,224 @@ public class WaltServiceImpl implements WaltService {
         return Math.random() * 21;
     }
 
+    // ************************************* findNextAvailableSlot ***************************************
+    @Override
+    public Date findNextAvailableSlot(Customer customer, Restaurant restaurant, Date from, Date to) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
+        validateOrder(customer, restaurant);
+        City city = restaurant.getCity();
+        for (long hour = nextHourWithFreeDriver(city, HourSlot.of(from), to); ; hour = nextHourWithFreeDriver(city, hour + 1, to)){
+            // the index only counts bookings, so the hour is checked against the actual drivers of the city
+            Date deliveryTime = deliveryTimeIn(hour, from);
+            if (findDriver(city, deliveryTime) != null){
+                return deliveryTime;
+            }
+        }
+    }
+
+    @Override
+    public Delivery createOrderAtNextAvailableSlot(Customer customer, Restaurant restaurant, Date from, Date to) throws NoAvailableDriverException, CustomerDoesntExistException, DifferentCityException {
+        validateOrder(customer, restaurant);
+        City city = restaurant.getCity();
+        for (long hour = nextHourWithFreeDriver(city, HourSlot.of(from), to); ; hour = nextHourWithFreeDriver(city, hour + 1, to)){
+            try {
+                return assignAndSave(customer, restaurant, deliveryTimeIn(hour, from), null);
+            } catch (NoAvailableDriverException e){
+                // someone else took the last driver of that hour in the meantime
+            }
+        }
+    }
+
+    private long nextHourWithFreeDriver(City city, long fromHour, Date to) throws NoAvailableDriverException {
+        long hour = availabilityIndex.firstHourWithFreeDriver(city.getId(), fromHour, HourSlot.of(to), loadIndex.driverCount(city.getId()));
+        if (hour < 0){
+            throw new NoAvailableDriverException();
+        }
+        return hour;
+    }
+
+    // the window's own start if that's the hour found, the start of the hour otherwise
+    private Date deliveryTimeIn(long hour, Date from) {
+        return hour == HourSlot.of(from) ? from : HourSlot.start(hour);
+    }
+
+    // ************************************* createOrderAndAssignDriverAsync ***************************************
+    @Override
+    public CompletableFuture<Delivery> createOrderAndAssignDriverAsync(Customer customer, Restaurant restaurant, Date deliveryTime) {
+        // validation, assignment and saving all run on the partition that owns the city, the caller only enqueues
+        return orderPipeline.submit(restaurant.getCity(),
+                () -> queryStatistics.measure(ASYNC_ORDER_CALL, () -> createOrderAndAssignDriver(customer, restaurant, deliveryTime)));
+    }
+
+    // ************************************* createOrdersAndAssignDrivers ***************************************
+    @Override
+    public List<OrderResult> createOrdersAndAssignDrivers(List<OrderRequest> orders) {
+        OrderResult[] results = new OrderResult[orders.size()];
+        // orders for the same city and hour compete for the same drivers, so they're assigned together
+        Map<List<Long>, List<Integer>> ordersBySlot = new LinkedHashMap<>();
+        for (int i = 0; i < orders.size(); i++){
+            OrderRequest order = orders.get(i);
+            try {
+                validateOrder(order.getCustomer(), order.getRestaurant());
+                List<Long> slot = Arrays.asList(order.getRestaurant().getCity().getId(), HourSlot.of(order.getDeliveryTime()));
+                ordersBySlot.computeIfAbsent(slot, key -> new ArrayList<>()).add(i);
+            } catch (CustomerDoesntExistException | DifferentCityException e){
+                orderMetrics.countRejectedOrder(e, order.getRestaurant().getCity());
+                results[i] = OrderResult.failure(order, e);
+            }
+        }
+
+        List<Integer> assignedOrders = new ArrayList<>();
+        List<Delivery> deliveries = new ArrayList<>();
+        for (List<Integer> slotOrders: ordersBySlot.values()){
+            for (int i: slotOrders){
+                OrderRequest order = orders.get(i);
+                try {
+                    // every claim updates the drivers' loads, so later orders of the batch go to less busy drivers
+                    deliveries.add(assignDriver(order.getCustomer(), order.getRestaurant(), order.getDeliveryTime()));
+                    assignedOrders.add(i);
+                } catch (NoAvailableDriverException e){
+                    orderMetrics.countRejectedOrder(e, order.getRestaurant().getCity());
+                    results[i] = OrderResult.failure(order, e);
+                }
+            }
+        }
+
+        // the deliveries before this index are saved, the ones from it on still hold only their claims
+        int saved = 0;
+        try {
+            if (deliveryJournal.isEnabled()){
+                for (Delivery delivery: deliveries){
+                    deliveryJournal.append(delivery);
+                    saved++;
+                }
+            } else {
+                // one transaction, written with JDBC batch inserts
+                deliveryRepository.saveAll(deliveries);
+                saved = deliveries.size();
+            }
+        } catch (DataIntegrityViolationException e){
+            // some driver was booked outside of the index, so the batch was rolled back and the orders are saved one by one
+            for (int j = saved; j < deliveries.size(); j++){
+                int i = assignedOrders.get(j);
+                results[i] = saveAgain(orders.get(i), deliveries.get(j));
+            }
+            deliveries = deliveries.subList(0, saved);
+        } catch (RuntimeException e){
+            for (int j = saved; j < deliveries.size(); j++){
+                releaseClaim(deliveries.get(j));
+                results[assignedOrders.get(j)] = OrderResult.failure(orders.get(assignedOrders.get(j)), e);
+            }
+            deliveries = deliveries.subList(0, saved);
+        }
+        for (int j = 0; j < deliveries.size(); j++){
+            Delivery delivery = deliveries.get(j);
+            recordDelivery(delivery);
+            results[assignedOrders.get(j)] = OrderResult.success(orders.get(assignedOrders.get(j)), delivery);
+        }
+        return Arrays.asList(results);
+    }
+
+    private OrderResult saveAgain(OrderRequest order, Delivery claimed) {
+        Delivery delivery = new Delivery(claimed.getDriver(), claimed.getRestaurant(), claimed.getCustomer(), claimed.getDeliveryTime());
+        delivery.setDistance(claimed.getDistance());
+        try {
+            if (!save(delivery)){
+                delivery = assignAndSave(order.getCustomer(), order.getRestaurant(), order.getDeliveryTime(), null);
+            }
+            return OrderResult.success(order, delivery);
+        } catch (NoAvailableDriverException | RuntimeException e){
+            return OrderResult.failure(order, e);
+        }
+    }
+
     // ************************************* getDriverRankReport ***************************************
     @Override
     public List<DriverDistance> getDriverRankReport() {
-        List<DriverDistance> driverDistanceList = new java.util.ArrayList<>(Collections.emptyList());
-        List<Driver> drivers = (List<Driver>) driverRepository.findAll();
-        List<Delivery> deliveries;
-        double totalDistance;
-        for (Driver driver: drivers){
-            deliveries = deliveryRepository.findAllDeliveriesByDriver(driver);
-            totalDistance = 0;
-            for (Delivery delivery: deliveries){
-                totalDistance+=delivery.getDistance();
-            }
-            DriverDistance driverDistance = new DriverDistanceImpl(driver, (long) totalDistance);
-            driverDistanceList.add(driverDistance);
+        return getDriverRankReport(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<DriverDistance> getDriverRankReport(int limit) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return rankReportCache.getRanking(limit);
+        } finally {
+            orderMetrics.stopRankReport(sample, OrderMetrics.ALL_CITIES_REPORT);
         }
-        return driverDistanceList;
     }
 
     // ************************************* getDriverRankReportByCity ***************************************
     @Override
     public List<DriverDistance> getDriverRankReportByCity(City city) {
-        List<DriverDistance> driverDistanceList = new java.util.ArrayList<>(Collections.emptyList());
-        List<Driver> drivers = driverRepository.findAllDriversByCity(city);
-        List<Delivery> deliveries;
-        double totalDistance;
-        for (Driver driver: drivers){
-            deliveries = deliveryRepository.findAllDeliveriesByDriver_CityAndDriver(city, driver);
-            totalDistance = 0;
-            for (Delivery delivery: deliveries){
-                totalDistance+=delivery.getDistance();
-            }
-            DriverDistance driverDistance = new DriverDistanceImpl(driver, (long) totalDistance);
-            driverDistanceList.add(driverDistance);
-        }
-        return driverDistanceList;
+        return getDriverRankReportByCity(city, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<DriverDistance> getDriverRankReportByCity(City city, int limit) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return rankReportCache.getRankingByCity(city.getId(), limit);
+        } finally {
+            orderMetrics.stopRankReport(sample, OrderMetrics.CITY_REPORT);
+        }
+    }
+
+    // ************************************* streamed and paged rank reports ***************************************
+    // the stream walks the ranking as it was when the stream was opened
+    @Override
+    public Stream<DriverDistance> streamDriverRankReport() {
+        return leaderboard.streamRanking(DriverDistanceLeaderboard.ALL_CITIES);
+    }
+
+    @Override
+    public Stream<DriverDistance> streamDriverRankReportByCity(City city) {
+        return leaderboard.streamRanking(city.getId());
+    }
+
+    // pass null for the first page, then the page's next cursor until it's null
+    @Override
+    public RankPage getDriverRankReportPage(RankCursor after, int pageSize) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return leaderboard.getRankingPage(DriverDistanceLeaderboard.ALL_CITIES, after, pageSize);
+        } finally {
+            orderMetrics.stopRankReport(sample, OrderMetrics.ALL_CITIES_PAGE_REPORT);
+        }
+    }
+
+    @Override
+    public RankPage getDriverRankReportPageByCity(City city, RankCursor after, int pageSize) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return leaderboard.getRankingPage(city.getId(), after, pageSize);
+        } finally {
+            orderMetrics.stopRankReport(sample, OrderMetrics.CITY_PAGE_REPORT);
+        }
+    }
+
+    // ************************************* time range rank reports ***************************************
+    // both ends count as whole days, in UTC
+    @Override
+    public List<DriverDistance> getDriverRankReport(Date from, Date to) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return rollups.getRanking(DriverDistanceLeaderboard.ALL_CITIES, dayOf(from), dayOf(to), Integer.MAX_VALUE);
+        } finally {
+            orderMetrics.stopRankReport(sample, OrderMetrics.ALL_CITIES_RANGE_REPORT);
+        }
+    }
+
+    @Override
+    public List<DriverDistance> getDriverRankReportByCity(City city, Date from, Date to) {
+        Timer.Sample sample = orderMetrics.start();
+        try {
+            return rollups.getRanking(city.getId(), dayOf(from), dayOf(to), Integer.MAX_VALUE);
+        } finally {
+            orderMetrics.stopRankReport(sample, OrderMetrics.CITY_RANGE_REPORT);
+        }
+    }
+
+    private long dayOf(Date date) {
+        return HourSlot.dayOf(HourSlot.of(date));
     }
 }
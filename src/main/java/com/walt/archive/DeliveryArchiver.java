@@ -0,0 +1,137 @@
+package com.walt.archive;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DeliverySummaryRepository;
+import com.walt.model.ArchivableDelivery;
+import com.walt.model.DeliverySummary;
+import com.walt.model.HourSlot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Rolls the deliveries older than the horizon into daily summaries per driver and city and deletes them,
+ * so the delivery table only holds the recent history. The indexes keep their totals, since nothing is lost
+ * but the single deliveries, and read the summaries along with the deliveries when they're rebuilt.
+ * Summaries are daily rather than monthly, up to about 30 rows per driver and city a month instead of one,
+ * since the ranking over a range of days needs the archived distances by day.
+ */
+@Component
+public class DeliveryArchiver {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryArchiver.class);
+
+    @Autowired
+    DeliveryRepository deliveryRepository;
+    @Autowired
+    DeliverySummaryRepository deliverySummaryRepository;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Value("${walt.archive.enabled:false}")
+    boolean enabled;
+    @Value("${walt.archive.horizon-days:90}")
+    int horizonDays;
+    @Value("${walt.archive.interval-minutes:60}")
+    long intervalMinutes;
+    @Value("${walt.archive.batch-size:1000}")
+    int batchSize;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (enabled){
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "delivery-archiver");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::archiveQuietly, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (scheduler != null){
+            scheduler.shutdownNow();
+        }
+    }
+
+    // archives the deliveries of the hours before the cutoff's hour, returns how many were archived
+    public int archive(Date cutoff) {
+        long cutoffSlot = HourSlot.of(cutoff);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        int archived = 0;
+        long afterId = 0;
+        while (true){
+            long from = afterId;
+            List<ArchivableDelivery> deliveries = transactionTemplate.execute(status -> archiveBatch(cutoffSlot, from));
+            if (deliveries.isEmpty()){
+                return archived;
+            }
+            archived += deliveries.size();
+            afterId = deliveries.get(deliveries.size() - 1).getId();
+        }
+    }
+
+    // sums and deletes the next batch by id, so a delivery saved meanwhile (e.g. back-dated, or flushed late
+    // from the journal) is never deleted without being summed, and is left for the next run
+    private List<ArchivableDelivery> archiveBatch(long cutoffSlot, long afterId) {
+        List<ArchivableDelivery> deliveries = deliveryRepository.findArchivableDeliveries(cutoffSlot, afterId, PageRequest.of(0, batchSize));
+        if (deliveries.isEmpty()){
+            return deliveries;
+        }
+        // a day that was archived up to the middle gets the rest added to the same summary
+        Set<Long> days = deliveries.stream().map(delivery -> HourSlot.dayOf(delivery.getDeliverySlot())).collect(Collectors.toSet());
+        Map<List<Long>, DeliverySummary> summaries = new HashMap<>();
+        for (DeliverySummary summary: deliverySummaryRepository.findAllByDayIn(days)){
+            summaries.put(Arrays.asList(summary.getDriverId(), summary.getCityId(), summary.getDay()), summary);
+        }
+        List<Long> ids = new ArrayList<>(deliveries.size());
+        for (ArchivableDelivery delivery: deliveries){
+            long day = HourSlot.dayOf(delivery.getDeliverySlot());
+            summaries.computeIfAbsent(Arrays.asList(delivery.getDriverId(), delivery.getCityId(), day),
+                    key -> new DeliverySummary(delivery.getDriverId(), delivery.getCityId(), day))
+                    .add(1, delivery.getDistance());
+            ids.add(delivery.getId());
+        }
+        deliverySummaryRepository.saveAll(summaries.values());
+        int deleted = deliveryRepository.deleteAllByIdIn(ids);
+        if (deleted != ids.size()){
+            // some were cancelled after they were read, so the batch is rolled back rather than summing them anyway
+            throw new IllegalStateException("Deliveries changed while archiving, " + deleted + " of " + ids.size() + " were deleted");
+        }
+        return deliveries;
+    }
+
+    private void archiveQuietly() {
+        try {
+            int archived = archive(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(horizonDays)));
+            if (archived > 0){
+                log.info("Archived {} deliveries older than {} days", archived, horizonDays);
+            }
+        } catch (RuntimeException e){
+            log.warn("Couldn't archive the old deliveries", e);
+        }
+    }
+}
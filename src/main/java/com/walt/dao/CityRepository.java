@@ -1,10 +1,16 @@
 package com.walt.dao;
 
 import com.walt.model.City;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+
 @Repository
 public interface CityRepository extends CrudRepository<City, Long> {
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
     City findByName(String cityName);
 }
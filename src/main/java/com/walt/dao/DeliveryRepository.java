@@ -1,22 +1,75 @@
 package com.walt.dao;
 
+import com.walt.model.ArchivableDelivery;
 import com.walt.model.City;
 import com.walt.model.Driver;
 import com.walt.model.Delivery;
+import com.walt.model.DriverBooking;
+import com.walt.model.DriverDayDistance;
 import com.walt.model.DriverDistance;
+import com.walt.model.DriverLoad;
+import com.walt.model.DriverTotalDistance;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 @Repository
 public interface DeliveryRepository extends CrudRepository<Delivery, Long> {
     List<Delivery> findAllDeliveriesByDriver(Driver driver);
     Delivery findFirstByDriverAndDeliveryTime(Driver driver, Date date);
     List<Delivery> findAllDeliveriesByDriver_CityAndDriver(City city, Driver driver);
+
+    // the delivery goes back to a client that retried, so its lazy associations are loaded along with it
+    @Query("select d from Delivery d join fetch d.driver dr join fetch dr.city join fetch d.restaurant join fetch d.customer " +
+            "where d.idempotencyKey = :idempotencyKey")
+    Delivery findByIdempotencyKey(@Param("idempotencyKey") String idempotencyKey);
+
+    @Query("select d.driver.id as driverId, d.driver.city.id as cityId, d.deliveryTime as deliveryTime from Delivery d")
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    Stream<DriverBooking> streamAllBookings();
+
+    // floored like HourSlot.dayOf: the division truncates, so an hour before 1970 is moved back into its own day
+    @Query("select d.driver.id as driverId, d.restaurant.city.id as cityId, " +
+            "d.deliverySlot / 24 - case when mod(d.deliverySlot, 24) < 0 then 1 else 0 end as day, sum(d.distance) as totalDistance " +
+            "from Delivery d group by d.driver.id, d.restaurant.city.id, d.deliverySlot / 24 - case when mod(d.deliverySlot, 24) < 0 then 1 else 0 end")
+    List<DriverDayDistance> sumDistancesByDriverAndDay();
+
+    // the next deliveries before the slot by id, so the archiver deletes exactly the rows it summed
+    @Query("select d.id as id, d.driver.id as driverId, d.restaurant.city.id as cityId, d.deliverySlot as deliverySlot, d.distance as distance " +
+            "from Delivery d where d.deliverySlot < :slot and d.id > :afterId order by d.id")
+    List<ArchivableDelivery> findArchivableDeliveries(@Param("slot") Long slot, @Param("afterId") Long afterId, Pageable pageable);
+
+    @Modifying
+    @Query("delete from Delivery d where d.id in :ids")
+    int deleteAllByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Query("select d.driver.id as driverId, count(d) as deliveries from Delivery d group by d.driver.id")
+    List<DriverLoad> countDeliveriesByDriver();
+
+    @Query("select dr as driver, coalesce(sum(d.distance), 0) as totalDistance from Driver dr join fetch dr.city c " +
+            "left join Delivery d on d.driver = dr group by dr, c order by coalesce(sum(d.distance), 0) desc, dr.id")
+    List<DriverDistance> findDriverRank(Pageable pageable);
+
+    @Query("select dr as driver, coalesce(sum(d.distance), 0) as totalDistance from Driver dr join fetch dr.city c " +
+            "left join Delivery d on d.driver = dr where c = :city group by dr, c order by coalesce(sum(d.distance), 0) desc, dr.id")
+    List<DriverDistance> findDriverRankByCity(@Param("city") City city, Pageable pageable);
+
+    @Query("select dr as driver, coalesce(sum(d.distance), 0) as totalDistance from Driver dr join fetch dr.city c " +
+            "left join Delivery d on d.driver = dr group by dr, c")
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    Stream<DriverTotalDistance> streamDistancesByDriver();
 }
 
 
@@ -0,0 +1,22 @@
+package com.walt.dao;
+
+import com.walt.model.DeliverySummary;
+import com.walt.model.DriverDayDistance;
+import com.walt.model.DriverLoad;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface DeliverySummaryRepository extends CrudRepository<DeliverySummary, Long> {
+    List<DeliverySummary> findAllByDayIn(Collection<Long> days);
+
+    @Query("select s.driverId as driverId, s.cityId as cityId, s.day as day, s.totalDistance as totalDistance from DeliverySummary s")
+    List<DriverDayDistance> findAllDayDistances();
+
+    @Query("select s.driverId as driverId, sum(s.deliveries) as deliveries from DeliverySummary s group by s.driverId")
+    List<DriverLoad> countDeliveriesByDriver();
+}
@@ -2,13 +2,19 @@ package com.walt.dao;
 
 import com.walt.model.City;
 import com.walt.model.Driver;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
 import java.util.List;
 
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+
 @Repository
 public interface DriverRepository extends CrudRepository<Driver,Long> {
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
     List<Driver> findAllDriversByCity(City city);
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
     Driver findByName(String name);
 }
@@ -0,0 +1,7 @@
+package com.walt.exceptions;
+
+public class OrderQueueFullException extends Exception{
+    public OrderQueueFullException(){
+        super("There are too many pending orders in the restaurant's city");
+    }
+}
@@ -0,0 +1,52 @@
+package com.walt.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Date;
+
+/**
+ * Fills the database on startup when running with the "generate" profile, e.g.
+ * {@code mvn spring-boot:run -Dspring-boot.run.profiles=generate -Dspring-boot.run.arguments=--walt.generator.deliveries=5000000}
+ */
+@Component
+@Profile("generate")
+public class DataGeneratorRunner implements CommandLineRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(DataGeneratorRunner.class);
+
+    @Autowired
+    SyntheticDataGenerator generator;
+
+    @Value("${walt.generator.seed}")
+    long seed;
+    @Value("${walt.generator.cities}")
+    int cities;
+    @Value("${walt.generator.drivers}")
+    int drivers;
+    @Value("${walt.generator.customers}")
+    int customers;
+    @Value("${walt.generator.restaurants}")
+    int restaurants;
+    @Value("${walt.generator.deliveries}")
+    long deliveries;
+    @Value("${walt.generator.skew}")
+    double skew;
+    @Value("${walt.generator.end-time}")
+    String endTime;
+
+    @Override
+    public void run(String... args) {
+        long start = System.currentTimeMillis();
+        GeneratedDataset dataset = generator.generate(new DatasetSpec(seed, cities, drivers, customers, restaurants, deliveries, skew,
+                Date.from(Instant.parse(endTime))));
+        log.info("Generated {} cities, {} drivers and {} deliveries in {} ms",
+                cities, drivers, dataset.getDeliveries(), System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,67 @@
+package com.walt.generator;
+
+import java.util.Date;
+
+/**
+ * How much of every entity to generate. Drivers, customers and restaurants are spread over the cities,
+ * and deliveries over the drivers, by a Zipf distribution with the given exponent (0 spreads them evenly).
+ * The deliveries go back in time from the hour of the end time, which is fixed rather than the current
+ * time so the same spec always generates the same rows.
+ */
+public class DatasetSpec {
+
+    // 2021-01-01T00:00:00Z
+    public static final Date DEFAULT_END_TIME = new Date(1609459200000L);
+
+    long seed;
+    int cities;
+    int drivers;
+    int customers;
+    int restaurants;
+    long deliveries;
+    double skew;
+    Date endTime;
+
+    public DatasetSpec(long seed, int cities, int drivers, int customers, int restaurants, long deliveries, double skew, Date endTime) {
+        this.seed = seed;
+        this.cities = cities;
+        this.drivers = drivers;
+        this.customers = customers;
+        this.restaurants = restaurants;
+        this.deliveries = deliveries;
+        this.skew = skew;
+        this.endTime = endTime;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getCities() {
+        return cities;
+    }
+
+    public int getDrivers() {
+        return drivers;
+    }
+
+    public int getCustomers() {
+        return customers;
+    }
+
+    public int getRestaurants() {
+        return restaurants;
+    }
+
+    public long getDeliveries() {
+        return deliveries;
+    }
+
+    public double getSkew() {
+        return skew;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+}
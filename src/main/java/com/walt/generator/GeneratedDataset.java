@@ -0,0 +1,42 @@
+package com.walt.generator;
+
+/**
+ * What a generator run wrote: the generated names are {@code city-<c>}, {@code driver-<c>-<i>},
+ * {@code customer-<c>-<i>} and {@code restaurant-<c>-<i>}, and every city has at least one customer and restaurant.
+ */
+public class GeneratedDataset {
+    int[] driversByCity;
+    int[] customersByCity;
+    int[] restaurantsByCity;
+    long deliveries;
+    long firstFreeHour;
+
+    GeneratedDataset(int[] driversByCity, int[] customersByCity, int[] restaurantsByCity, long deliveries, long firstFreeHour) {
+        this.driversByCity = driversByCity;
+        this.customersByCity = customersByCity;
+        this.restaurantsByCity = restaurantsByCity;
+        this.deliveries = deliveries;
+        this.firstFreeHour = firstFreeHour;
+    }
+
+    public int getDrivers(int city) {
+        return driversByCity[city];
+    }
+
+    public int getCustomers(int city) {
+        return customersByCity[city];
+    }
+
+    public int getRestaurants(int city) {
+        return restaurantsByCity[city];
+    }
+
+    public long getDeliveries() {
+        return deliveries;
+    }
+
+    // every generated delivery is before this hour slot, so all drivers are free from it on
+    public long getFirstFreeHour() {
+        return firstFreeHour;
+    }
+}
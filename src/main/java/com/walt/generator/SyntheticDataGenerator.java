@@ -0,0 +1,211 @@
+package com.walt.generator;
+
+import com.walt.index.DriverAvailabilityIndex;
+import com.walt.index.DriverDistanceLeaderboard;
+import com.walt.index.DriverDistanceRollups;
+import com.walt.index.DriverLoadIndex;
+import com.walt.model.HourSlot;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic dataset straight into the tables with batched JDBC inserts, streaming the deliveries
+ * so only one batch is held in memory. The same spec and seed always produce the same rows.
+ */
+@Component
+public class SyntheticDataGenerator {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final String INSERT_CITY = "insert into city (id, name) values (?, ?)";
+    private static final String INSERT_DRIVER = "insert into driver (id, name, city_id) values (?, ?, ?)";
+    private static final String INSERT_CUSTOMER = "insert into customer (id, name, city_id, address) values (?, ?, ?, ?)";
+    private static final String INSERT_RESTAURANT = "insert into restaurant (id, name, city_id, address) values (?, ?, ?, ?)";
+    private static final String INSERT_DELIVERY = "insert into delivery (id, driver_id, restaurant_id, customer_id, delivery_time, delivery_slot, distance) values (?, ?, ?, ?, ?, ?, ?)";
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+    @Autowired
+    DriverAvailabilityIndex availabilityIndex;
+    @Autowired
+    DriverLoadIndex loadIndex;
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+    @Autowired
+    DriverDistanceRollups rollups;
+
+    public GeneratedDataset generate(DatasetSpec spec) {
+        Random random = new Random(spec.getSeed());
+        double[] cityWeights = zipf(spec.getCities(), spec.getSkew());
+        int[] driversByCity = toInts(allocate(spec.getDrivers(), cityWeights, 0));
+        int[] customersByCity = toInts(allocate(spec.getCustomers(), cityWeights, 1));
+        int[] restaurantsByCity = toInts(allocate(spec.getRestaurants(), cityWeights, 1));
+        // the busiest drivers are scattered over the cities instead of all being the first drivers of the biggest city
+        long[] deliveriesByDriver = allocate(spec.getDeliveries(), shuffle(zipf(sum(driversByCity), spec.getSkew()), random), 0);
+
+        long firstId = reserveIds(spec.getCities() + sum(driversByCity) + sum(customersByCity) + sum(restaurantsByCity) + sum(deliveriesByDriver));
+        long nextId = firstId;
+        long[] cityIds = new long[spec.getCities()];
+        long[] driverIds = new long[spec.getCities()];
+        long[] customerIds = new long[spec.getCities()];
+        long[] restaurantIds = new long[spec.getCities()];
+
+        BatchWriter cities = new BatchWriter(INSERT_CITY);
+        for (int c = 0; c < spec.getCities(); c++){
+            cityIds[c] = nextId++;
+            cities.add(cityIds[c], "city-" + c);
+        }
+        cities.flush();
+        BatchWriter drivers = new BatchWriter(INSERT_DRIVER);
+        BatchWriter customers = new BatchWriter(INSERT_CUSTOMER);
+        BatchWriter restaurants = new BatchWriter(INSERT_RESTAURANT);
+        for (int c = 0; c < spec.getCities(); c++){
+            driverIds[c] = nextId;
+            for (int i = 0; i < driversByCity[c]; i++){
+                drivers.add(nextId++, "driver-" + c + "-" + i, cityIds[c]);
+            }
+            customerIds[c] = nextId;
+            for (int i = 0; i < customersByCity[c]; i++){
+                customers.add(nextId++, "customer-" + c + "-" + i, cityIds[c], "address-" + i);
+            }
+            restaurantIds[c] = nextId;
+            for (int i = 0; i < restaurantsByCity[c]; i++){
+                restaurants.add(nextId++, "restaurant-" + c + "-" + i, cityIds[c], "address-" + i);
+            }
+        }
+        drivers.flush();
+        customers.flush();
+        restaurants.flush();
+
+        long firstFreeHour = HourSlot.of(spec.getEndTime());
+        BatchWriter deliveries = new BatchWriter(INSERT_DELIVERY);
+        int driver = 0;
+        for (int c = 0; c < spec.getCities(); c++){
+            for (int i = 0; i < driversByCity[c]; i++, driver++){
+                // a driver's deliveries go back in time from the end time's hour, a few hours apart so no two share an hour
+                long hour = firstFreeHour;
+                for (long d = 0; d < deliveriesByDriver[driver]; d++){
+                    hour -= 1 + random.nextInt(3);
+                    deliveries.add(nextId++, driverIds[c] + i,
+                            restaurantIds[c] + random.nextInt(restaurantsByCity[c]),
+                            customerIds[c] + random.nextInt(customersByCity[c]),
+                            new Timestamp(HourSlot.start(hour).getTime()), hour, random.nextDouble() * 21);
+                }
+            }
+        }
+        deliveries.flush();
+
+        // hibernate didn't see these inserts, so cached query results like the drivers of a city are out of date
+        entityManagerFactory.unwrap(SessionFactory.class).getCache().evictAllRegions();
+        availabilityIndex.rebuild();
+        loadIndex.rebuild();
+        leaderboard.rebuild();
+        rollups.rebuild();
+        return new GeneratedDataset(driversByCity, customersByCity, restaurantsByCity, sum(deliveriesByDriver), firstFreeHour);
+    }
+
+    // takes the ids from the sequence hibernate uses, so entities saved later don't collide with the generated ones
+    private long reserveIds(long count) {
+        long firstId = jdbcTemplate.queryForObject("select next value for hibernate_sequence", Long.class);
+        jdbcTemplate.execute("alter sequence hibernate_sequence restart with " + (firstId + count));
+        return firstId;
+    }
+
+    private static double[] zipf(int size, double skew) {
+        double[] weights = new double[size];
+        for (int i = 0; i < size; i++){
+            weights[i] = 1 / Math.pow(i + 1, skew);
+        }
+        return weights;
+    }
+
+    private static double[] shuffle(double[] weights, Random random) {
+        for (int i = weights.length - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            double weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+        return weights;
+    }
+
+    // splits the total by the weights, the rounding leftovers going one by one to the first entries
+    private static long[] allocate(long total, double[] weights, int minimum) {
+        long[] counts = new long[weights.length];
+        if (weights.length == 0){
+            return counts;
+        }
+        double weightSum = 0;
+        for (double weight: weights){
+            weightSum += weight;
+        }
+        long allocated = 0;
+        for (int i = 0; i < weights.length; i++){
+            counts[i] = (long) Math.floor(total * weights[i] / weightSum);
+            allocated += counts[i];
+        }
+        for (int i = 0; allocated < total; i = (i + 1) % weights.length, allocated++){
+            counts[i]++;
+        }
+        for (int i = 0; i < counts.length; i++){
+            counts[i] = Math.max(minimum, counts[i]);
+        }
+        return counts;
+    }
+
+    private static int[] toInts(long[] counts) {
+        int[] ints = new int[counts.length];
+        for (int i = 0; i < counts.length; i++){
+            ints[i] = (int) counts[i];
+        }
+        return ints;
+    }
+
+    private static int sum(int[] counts) {
+        int sum = 0;
+        for (int count: counts){
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count: counts){
+            sum += count;
+        }
+        return sum;
+    }
+
+    private class BatchWriter {
+        private final String sql;
+        private final List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+
+        BatchWriter(String sql) {
+            this.sql = sql;
+        }
+
+        void add(Object... row) {
+            rows.add(row);
+            if (rows.size() == BATCH_SIZE){
+                flush();
+            }
+        }
+
+        void flush() {
+            if (!rows.isEmpty()){
+                jdbcTemplate.batchUpdate(sql, rows);
+                rows.clear();
+            }
+        }
+    }
+}
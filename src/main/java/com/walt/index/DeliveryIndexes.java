@@ -0,0 +1,33 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Takes a delivery that isn't in the database (anymore) back out of the in-memory indexes that counted it,
+ * whether it was deleted or refused when the journal was flushed.
+ */
+@Component
+public class DeliveryIndexes {
+
+    @Autowired
+    DriverAvailabilityIndex availabilityIndex;
+    @Autowired
+    DriverLoadIndex loadIndex;
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+    @Autowired
+    DriverDistanceRollups rollups;
+
+    // the driver's hour stays booked when another delivery of the driver holds it
+    public void removeDelivery(Driver driver, Delivery delivery, boolean releaseHour) {
+        if (releaseHour){
+            availabilityIndex.release(driver.getCity().getId(), driver.getId(), delivery.getDeliveryTime());
+        }
+        loadIndex.removeDelivery(driver);
+        leaderboard.recordDelivery(driver, -delivery.getDistance());
+        rollups.removeDelivery(driver, delivery.getDeliverySlot(), delivery.getDistance());
+    }
+}
@@ -0,0 +1,173 @@
+package com.walt.index;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.model.DriverBooking;
+import com.walt.model.HourSlot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps, for every (city, hour) slot, the set of drivers that already have a delivery in that hour,
+ * so finding the free drivers of a city doesn't need a query per driver.
+ */
+@Component
+public class DriverAvailabilityIndex {
+
+    // full hours that went by are never released, so the remembered ones are dropped once there are this many
+    private static final int MAX_SATURATED_HOURS = 10000;
+
+    @Autowired
+    DeliveryRepository deliveryRepository;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private final Map<Long, CitySchedule> schedules = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void rebuild() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.execute(status -> {
+            schedules.clear();
+            try (Stream<DriverBooking> bookings = deliveryRepository.streamAllBookings()) {
+                bookings.forEach(booking -> tryBook(booking.getCityId(), booking.getDriverId(), booking.getDeliveryTime()));
+            }
+            return null;
+        });
+    }
+
+    // claims the driver for that hour, returns false if someone else already did
+    public boolean tryBook(Long cityId, Long driverId, Date deliveryTime) {
+        return scheduleOf(cityId).tryBook(driverId, HourSlot.of(deliveryTime));
+    }
+
+    public void release(Long cityId, Long driverId, Date deliveryTime) {
+        scheduleOf(cityId).release(driverId, HourSlot.of(deliveryTime));
+    }
+
+    public BookedDrivers bookedDrivers(Long cityId, Date deliveryTime) {
+        return scheduleOf(cityId).booked(HourSlot.of(deliveryTime));
+    }
+
+    // remembers that nobody was free in the snapshot's hour, unless a slot was released or a driver joined since it was taken
+    public void markSaturated(Long cityId, Date deliveryTime, BookedDrivers bookedDrivers) {
+        scheduleOf(cityId).markSaturated(HourSlot.of(deliveryTime), bookedDrivers.version);
+    }
+
+    public boolean isSaturated(Long cityId, Date deliveryTime) {
+        return scheduleOf(cityId).isSaturated(HourSlot.of(deliveryTime));
+    }
+
+    // a driver joined the city, so none of its hours can be assumed full anymore
+    public void driversChanged(Long cityId) {
+        scheduleOf(cityId).clearSaturated();
+    }
+
+    // the first hour slot between the two (inclusive) in which fewer than driversInCity drivers are booked, or -1
+    public long firstHourWithFreeDriver(Long cityId, long fromHour, long toHour, int driversInCity) {
+        return scheduleOf(cityId).firstHourWithFreeDriver(fromHour, toHour, driversInCity);
+    }
+
+    private CitySchedule scheduleOf(Long cityId) {
+        return schedules.computeIfAbsent(cityId, id -> new CitySchedule());
+    }
+
+    private static class CitySchedule {
+        // drivers get a dense slot number per city, which keeps the per-hour bitsets small
+        private final Map<Long, Integer> driverSlots = new ConcurrentHashMap<>();
+        private final Map<Long, BitSet> bookedByHour = new HashMap<>();
+        private final Set<Long> saturatedHours = new HashSet<>();
+        // bumped whenever an hour may have gained a free driver
+        private long version;
+
+        synchronized boolean tryBook(Long driverId, long hour) {
+            int slot = driverSlots.computeIfAbsent(driverId, id -> driverSlots.size());
+            BitSet booked = bookedByHour.computeIfAbsent(hour, h -> new BitSet());
+            if (booked.get(slot)){
+                return false;
+            }
+            booked.set(slot);
+            return true;
+        }
+
+        synchronized void release(Long driverId, long hour) {
+            Integer slot = driverSlots.get(driverId);
+            BitSet booked = bookedByHour.get(hour);
+            if (slot != null && booked != null){
+                version++;
+                saturatedHours.remove(hour);
+                booked.clear(slot);
+                if (booked.isEmpty()){
+                    bookedByHour.remove(hour);
+                }
+            }
+        }
+
+        synchronized void markSaturated(long hour, long snapshotVersion) {
+            if (snapshotVersion == version){
+                if (saturatedHours.size() >= MAX_SATURATED_HOURS){
+                    saturatedHours.clear();
+                }
+                saturatedHours.add(hour);
+            }
+        }
+
+        synchronized boolean isSaturated(long hour) {
+            return saturatedHours.contains(hour);
+        }
+
+        synchronized void clearSaturated() {
+            version++;
+            saturatedHours.clear();
+        }
+
+        // an hour nobody booked has no bitset, otherwise telling whether it's full is a count over a few words
+        synchronized long firstHourWithFreeDriver(long fromHour, long toHour, int driversInCity) {
+            for (long hour = fromHour; hour <= toHour; hour++){
+                BitSet booked = bookedByHour.get(hour);
+                if (booked == null ? driversInCity > 0 : booked.cardinality() < driversInCity){
+                    return hour;
+                }
+            }
+            return -1;
+        }
+
+        synchronized BookedDrivers booked(long hour) {
+            BitSet booked = bookedByHour.get(hour);
+            return new BookedDrivers(driverSlots, booked == null ? new BitSet() : (BitSet) booked.clone(), version);
+        }
+    }
+
+    public static class BookedDrivers {
+        private final Map<Long, Integer> driverSlots;
+        private final BitSet booked;
+        private final long version;
+
+        BookedDrivers(Map<Long, Integer> driverSlots, BitSet booked, long version) {
+            this.driverSlots = driverSlots;
+            this.booked = booked;
+            this.version = version;
+        }
+
+        public boolean contains(Long driverId) {
+            Integer slot = driverSlots.get(driverId);
+            return slot != null && booked.get(slot);
+        }
+
+        public int size() {
+            return booked.cardinality();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.walt.index;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DeliverySummaryRepository;
+import com.walt.model.Driver;
+import com.walt.model.DriverDayDistance;
+import com.walt.model.DriverDistance;
+import com.walt.model.DriverDistanceImpl;
+import com.walt.model.DriverTotalDistance;
+import com.walt.model.RankCursor;
+import com.walt.model.RankPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Materialized ranking of the drivers by total distance, globally and per city,
+ * updated on every delivery so the rank reports don't touch the database.
+ *
+ * Moving a driver in a ranking takes a remove and an add, so the rankings are only changed under the write lock
+ * and only read under the read lock. A report, page or stream then sees every driver exactly once.
+ */
+@Component
+public class DriverDistanceLeaderboard {
+
+    public static final Long ALL_CITIES = -1L;
+
+    private static final Comparator<Standing> BY_TOTAL_DISTANCE = Comparator
+            .comparingDouble((Standing standing) -> standing.totalDistance).reversed()
+            .thenComparing(standing -> standing.driverId);
+
+    @Autowired
+    DeliveryRepository deliveryRepository;
+    @Autowired
+    DeliverySummaryRepository deliverySummaryRepository;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private final Map<Long, Standing> standings = new ConcurrentHashMap<>();
+    private final NavigableSet<Standing> ranking = new ConcurrentSkipListSet<>(BY_TOTAL_DISTANCE);
+    private final Map<Long, NavigableSet<Standing>> rankingByCity = new ConcurrentHashMap<>();
+    private final ReadWriteLock rankingLock = new ReentrantReadWriteLock();
+    // bumped on every change of a city's ranking, so readers can tell whether what they copied is still current
+    private final Map<Long, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public synchronized void rebuild() {
+        versions.values().forEach(AtomicLong::incrementAndGet);
+        standings.clear();
+        rankingLock.writeLock().lock();
+        try {
+            ranking.clear();
+            rankingByCity.clear();
+        } finally {
+            rankingLock.writeLock().unlock();
+        }
+        Map<Long, Double> archivedDistances = archivedDistancesByDriver();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.execute(status -> {
+            try (Stream<DriverTotalDistance> driverTotalDistances = deliveryRepository.streamDistancesByDriver()) {
+                driverTotalDistances.forEach(driverTotalDistance -> {
+                    Driver driver = driverTotalDistance.getDriver();
+                    double totalDistance = driverTotalDistance.getTotalDistance() + archivedDistances.getOrDefault(driver.getId(), 0.0);
+                    standings.compute(driver.getId(), (id, previous) -> replace(previous, new Standing(driver, totalDistance)));
+                });
+            }
+            return null;
+        });
+    }
+
+    public void register(Driver driver) {
+        if (driver.getCity() == null){
+            return;
+        }
+        standings.compute(driver.getId(), (id, previous) ->
+                replace(previous, new Standing(driver, previous == null ? 0 : previous.totalDistance)));
+    }
+
+    public void unregister(Driver driver) {
+        standings.compute(driver.getId(), (id, previous) -> replace(previous, null));
+    }
+
+    public void recordDelivery(Driver driver, double distance) {
+        standings.compute(driver.getId(), (id, previous) ->
+                replace(previous, new Standing(driver, previous == null ? distance : previous.totalDistance + distance)));
+    }
+
+    public List<DriverDistance> getRanking(int limit) {
+        return toDriverDistances(ranking, limit);
+    }
+
+    public List<DriverDistance> getRankingByCity(Long cityId, int limit) {
+        NavigableSet<Standing> cityRanking = rankingByCity.get(cityId);
+        return cityRanking == null ? Collections.emptyList() : toDriverDistances(cityRanking, limit);
+    }
+
+    // only the standings are copied up front, the report rows are made as the stream is walked
+    public Stream<DriverDistance> streamRanking(Long cityId) {
+        List<Standing> snapshot;
+        rankingLock.readLock().lock();
+        try {
+            NavigableSet<Standing> standings = rankingOf(cityId);
+            if (standings == null){
+                return Stream.empty();
+            }
+            snapshot = new ArrayList<>(standings);
+        } finally {
+            rankingLock.readLock().unlock();
+        }
+        return snapshot.stream().map(Standing::toDriverDistance);
+    }
+
+    // the drivers ranked right after the cursor, which is found by a seek in the skip list rather than by skipping rows
+    public RankPage getRankingPage(Long cityId, RankCursor after, int pageSize) {
+        if (pageSize < 1){
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        List<Standing> page;
+        rankingLock.readLock().lock();
+        try {
+            NavigableSet<Standing> standings = rankingOf(cityId);
+            if (standings == null){
+                return new RankPage(Collections.emptyList(), null);
+            }
+            NavigableSet<Standing> remaining = after == null ? standings
+                    : standings.tailSet(new Standing(after.getDriverId(), after.getTotalDistance()), false);
+            page = remaining.stream().limit(pageSize + 1L).collect(Collectors.toList());
+        } finally {
+            rankingLock.readLock().unlock();
+        }
+        RankCursor next = null;
+        if (page.size() > pageSize){
+            page = page.subList(0, pageSize);
+            Standing last = page.get(pageSize - 1);
+            next = new RankCursor(last.totalDistance, last.driverId);
+        }
+        return new RankPage(page.stream().map(Standing::toDriverDistance).collect(Collectors.toList()), next);
+    }
+
+    // read from standings rather than the rankings, where a driver whose distance changes is briefly missing or twice
+    public List<Driver> getDrivers(Long cityId) {
+        return standings.values().stream()
+                .filter(standing -> ALL_CITIES.equals(cityId) || standing.cityId.equals(cityId))
+                .map(standing -> standing.driver)
+                .collect(Collectors.toList());
+    }
+
+    // the driver as it was last registered, null for a driver that isn't
+    public Driver getDriver(Long driverId) {
+        Standing standing = standings.get(driverId);
+        return standing == null ? null : standing.driver;
+    }
+
+    // the drivers of every city from a single pass over standings, so each driver is in exactly one city
+    public Map<Long, List<Driver>> getDriversByCity() {
+        return standings.values().stream()
+                .collect(Collectors.groupingBy(standing -> standing.cityId,
+                        Collectors.mapping(standing -> standing.driver, Collectors.toList())));
+    }
+
+    public long getVersion(Long cityId) {
+        return versionOf(cityId).get();
+    }
+
+    // compares the leaderboard with the database aggregate, returning the ids of the drivers that differ
+    public List<Long> findInconsistentDrivers() {
+        List<Long> inconsistentDrivers = new ArrayList<>();
+        Set<Long> expectedDrivers = new HashSet<>();
+        Map<Long, Double> archivedDistances = archivedDistancesByDriver();
+        for (DriverDistance driverDistance: deliveryRepository.findDriverRank(Pageable.unpaged())){
+            Long driverId = driverDistance.getDriver().getId();
+            expectedDrivers.add(driverId);
+            Standing standing = standings.get(driverId);
+            if (standing == null || !matches(standing, driverDistance.getTotalDistance(), archivedDistances.getOrDefault(driverId, 0.0))){
+                inconsistentDrivers.add(driverId);
+            }
+        }
+        standings.keySet().stream()
+                .filter(driverId -> !expectedDrivers.contains(driverId))
+                .forEach(inconsistentDrivers::add);
+        return inconsistentDrivers;
+    }
+
+    // the recent distance comes from the database cut to a whole number, the archived one doesn't
+    private static boolean matches(Standing standing, long recentDistance, double archivedDistance) {
+        double difference = standing.totalDistance - archivedDistance - recentDistance;
+        return difference > -1 && difference < 1;
+    }
+
+    private Map<Long, Double> archivedDistancesByDriver() {
+        Map<Long, Double> archivedDistances = new HashMap<>();
+        for (DriverDayDistance dayDistance: deliverySummaryRepository.findAllDayDistances()){
+            archivedDistances.merge(dayDistance.getDriverId(), dayDistance.getTotalDistance(), Double::sum);
+        }
+        return archivedDistances;
+    }
+
+    // called while holding the driver's entry in standings, so updates of the same driver never interleave
+    private Standing replace(Standing previous, Standing next) {
+        rankingLock.writeLock().lock();
+        try {
+            move(previous, next);
+        } finally {
+            rankingLock.writeLock().unlock();
+        }
+        return next;
+    }
+
+    private void move(Standing previous, Standing next) {
+        if (previous != null){
+            ranking.remove(previous);
+            NavigableSet<Standing> cityRanking = rankingByCity.get(previous.cityId);
+            if (cityRanking != null){
+                cityRanking.remove(previous);
+            }
+            versionOf(previous.cityId).incrementAndGet();
+        }
+        if (next != null){
+            ranking.add(next);
+            rankingByCity.computeIfAbsent(next.cityId, cityId -> new ConcurrentSkipListSet<>(BY_TOTAL_DISTANCE)).add(next);
+            versionOf(next.cityId).incrementAndGet();
+        }
+        versionOf(ALL_CITIES).incrementAndGet();
+    }
+
+    private NavigableSet<Standing> rankingOf(Long cityId) {
+        return ALL_CITIES.equals(cityId) ? ranking : rankingByCity.get(cityId);
+    }
+
+    private AtomicLong versionOf(Long cityId) {
+        return versions.computeIfAbsent(cityId, id -> new AtomicLong());
+    }
+
+    private List<DriverDistance> toDriverDistances(NavigableSet<Standing> standings, int limit) {
+        rankingLock.readLock().lock();
+        try {
+            return standings.stream()
+                    .limit(limit)
+                    .map(Standing::toDriverDistance)
+                    .collect(Collectors.toList());
+        } finally {
+            rankingLock.readLock().unlock();
+        }
+    }
+
+    private static class Standing {
+        private final Driver driver;
+        private final Long driverId;
+        private final Long cityId;
+        private final double totalDistance;
+
+        Standing(Driver driver, double totalDistance) {
+            this.driver = driver;
+            this.driverId = driver.getId();
+            this.cityId = driver.getCity().getId();
+            this.totalDistance = totalDistance;
+        }
+
+        // only used to seek to a position in the ranking
+        Standing(Long driverId, double totalDistance) {
+            this.driver = null;
+            this.driverId = driverId;
+            this.cityId = null;
+            this.totalDistance = totalDistance;
+        }
+
+        DriverDistance toDriverDistance() {
+            return new DriverDistanceImpl(driver, (long) totalDistance);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.walt.index;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DeliverySummaryRepository;
+import com.walt.model.Driver;
+import com.walt.model.DriverDayDistance;
+import com.walt.model.DriverDistance;
+import com.walt.model.DriverDistanceImpl;
+import com.walt.model.HourSlot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjDoubleConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * The distance every driver did per day, per city, so ranking the drivers over a range of days
+ * adds up one bucket per day instead of reading every delivery in the range. A delivery's distance
+ * is kept under the city it was made in, the restaurant's, whether it's recorded as it's made or the
+ * rollups are rebuilt from the database, so a driver that moved keeps their earlier days in the old city.
+ */
+@Component
+public class DriverDistanceRollups {
+
+    private static final Comparator<DriverDistance> BY_TOTAL_DISTANCE = Comparator
+            .comparing(DriverDistance::getTotalDistance).reversed()
+            .thenComparing(driverDistance -> driverDistance.getDriver().getId());
+
+    @Autowired
+    DeliveryRepository deliveryRepository;
+    @Autowired
+    DeliverySummaryRepository deliverySummaryRepository;
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+
+    private final Map<Long, CityRollup> rollupsByCity = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public synchronized void rebuild() {
+        rollupsByCity.clear();
+        for (DriverDayDistance dayDistance: deliveryRepository.sumDistancesByDriverAndDay()){
+            rollupOf(dayDistance.getCityId()).add(dayDistance.getDay(), dayDistance.getDriverId(), dayDistance.getTotalDistance());
+        }
+        // archived days count like the days still made of deliveries
+        for (DriverDayDistance dayDistance: deliverySummaryRepository.findAllDayDistances()){
+            rollupOf(dayDistance.getCityId()).add(dayDistance.getDay(), dayDistance.getDriverId(), dayDistance.getTotalDistance());
+        }
+    }
+
+    public void recordDelivery(Long cityId, Driver driver, long deliverySlot, double distance) {
+        rollupOf(cityId).add(HourSlot.dayOf(deliverySlot), driver.getId(), distance);
+    }
+
+    // takes the distance out of the city the driver did it in, which is the driver's current city unless they moved since
+    public void removeDelivery(Driver driver, long deliverySlot, double distance) {
+        long day = HourSlot.dayOf(deliverySlot);
+        CityRollup rollup = rollupsByCity.get(driver.getCity().getId());
+        if (rollup == null || !rollup.contains(day, driver.getId())){
+            rollup = rollupsByCity.values().stream()
+                    .filter(cityRollup -> cityRollup.contains(day, driver.getId()))
+                    .findFirst().orElse(null);
+        }
+        if (rollup != null){
+            rollup.add(day, driver.getId(), -distance);
+        }
+    }
+
+    // every driver of the city (or of all of them) with the distance of the deliveries between the two days, inclusive
+    public List<DriverDistance> getRanking(Long cityId, long fromDay, long toDay, int limit) {
+        if (!DriverDistanceLeaderboard.ALL_CITIES.equals(cityId)){
+            CityRanking ranking = new CityRanking(leaderboard.getDrivers(cityId));
+            ranking.addTotals(rollupsByCity.get(cityId), fromDay, toDay);
+            return ranking.sort().stream().limit(limit).collect(Collectors.toList());
+        }
+        // every city is summed and sorted on its own core, a driver's deliveries made in another city are added in between
+        Map<Long, List<Driver>> driversByCity = leaderboard.getDriversByCity();
+        Set<Long> cityIds = new HashSet<>(driversByCity.keySet());
+        cityIds.addAll(rollupsByCity.keySet());
+        List<CityRanking> rankings = cityIds.parallelStream()
+                .map(id -> {
+                    CityRanking ranking = new CityRanking(driversByCity.getOrDefault(id, Collections.emptyList()));
+                    ranking.addTotals(rollupsByCity.get(id), fromDay, toDay);
+                    return ranking;
+                })
+                .collect(Collectors.toList());
+        Map<Long, Double> elsewhere = new HashMap<>();
+        rankings.forEach(ranking -> ranking.elsewhere.forEach((driverId, distance) -> elsewhere.merge(driverId, distance, Double::sum)));
+        List<List<DriverDistance>> sorted = rankings.parallelStream()
+                .map(ranking -> ranking.addTotalsFromElsewhere(elsewhere).sort())
+                .collect(Collectors.toList());
+        return merge(sorted, limit);
+    }
+
+    // k-way merge of rankings that are each already sorted
+    private List<DriverDistance> merge(List<List<DriverDistance>> rankings, int limit) {
+        PriorityQueue<MergeCursor> heads = new PriorityQueue<>((a, b) -> BY_TOTAL_DISTANCE.compare(a.head(), b.head()));
+        int size = 0;
+        for (List<DriverDistance> ranking: rankings){
+            size += ranking.size();
+            if (!ranking.isEmpty()){
+                heads.add(new MergeCursor(ranking));
+            }
+        }
+        List<DriverDistance> merged = new ArrayList<>(Math.min(size, limit));
+        while (merged.size() < limit && !heads.isEmpty()){
+            MergeCursor cursor = heads.poll();
+            merged.add(cursor.head());
+            if (cursor.advance()){
+                heads.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    private CityRollup rollupOf(Long cityId) {
+        return rollupsByCity.computeIfAbsent(cityId, id -> new CityRollup());
+    }
+
+    private static class CityRollup {
+        private final NavigableMap<Long, Map<Long, Double>> distancesByDay = new TreeMap<>();
+
+        synchronized void add(long day, Long driverId, double distance) {
+            distancesByDay.computeIfAbsent(day, d -> new HashMap<>()).merge(driverId, distance, Double::sum);
+        }
+
+        synchronized boolean contains(long day, Long driverId) {
+            Map<Long, Double> distances = distancesByDay.get(day);
+            return distances != null && distances.containsKey(driverId);
+        }
+
+        synchronized void forEachDistance(long fromDay, long toDay, ObjDoubleConsumer<Long> consumer) {
+            for (Map<Long, Double> distances: distancesByDay.subMap(fromDay, true, toDay, true).values()){
+                distances.forEach(consumer::accept);
+            }
+        }
+    }
+
+    // the drivers a city has now, with their totals kept in a plain array indexed like the drivers
+    private static class CityRanking {
+        private final List<Driver> drivers;
+        private final Map<Long, Integer> positions = new HashMap<>();
+        private final double[] totals;
+        // distances in this city's rollup of drivers that moved to another city
+        private final Map<Long, Double> elsewhere = new HashMap<>();
+
+        CityRanking(List<Driver> drivers) {
+            this.drivers = drivers;
+            this.totals = new double[drivers.size()];
+            for (int i = 0; i < drivers.size(); i++){
+                positions.put(drivers.get(i).getId(), i);
+            }
+        }
+
+        void addTotals(CityRollup rollup, long fromDay, long toDay) {
+            if (rollup == null){
+                return;
+            }
+            rollup.forEachDistance(fromDay, toDay, (driverId, distance) -> {
+                Integer position = positions.get(driverId);
+                if (position != null){
+                    totals[position] += distance;
+                } else {
+                    elsewhere.merge(driverId, distance, Double::sum);
+                }
+            });
+        }
+
+        CityRanking addTotalsFromElsewhere(Map<Long, Double> distances) {
+            if (!distances.isEmpty()){
+                for (int i = 0; i < totals.length; i++){
+                    totals[i] += distances.getOrDefault(drivers.get(i).getId(), 0.0);
+                }
+            }
+            return this;
+        }
+
+        List<DriverDistance> sort() {
+            DriverDistance[] ranking = new DriverDistance[totals.length];
+            for (int i = 0; i < totals.length; i++){
+                ranking[i] = new DriverDistanceImpl(drivers.get(i), (long) totals[i]);
+            }
+            Arrays.sort(ranking, BY_TOTAL_DISTANCE);
+            return Collections.unmodifiableList(Arrays.asList(ranking));
+        }
+    }
+
+    private static class MergeCursor {
+        private final List<DriverDistance> ranking;
+        private int position;
+
+        MergeCursor(List<DriverDistance> ranking) {
+            this.ranking = ranking;
+        }
+
+        DriverDistance head() {
+            return ranking.get(position);
+        }
+
+        boolean advance() {
+            return ++position < ranking.size();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.walt.index;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DeliverySummaryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.model.Driver;
+import com.walt.model.DriverLoad;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the amount of deliveries of every driver in a min-heap per city,
+ * so the least busy driver is found without loading the drivers' history.
+ */
+@Component
+public class DriverLoadIndex {
+
+    @Autowired
+    DriverRepository driverRepository;
+    @Autowired
+    DeliveryRepository deliveryRepository;
+    @Autowired
+    DeliverySummaryRepository deliverySummaryRepository;
+
+    private final Map<Long, CityLoads> loadsByCity = new ConcurrentHashMap<>();
+    private final Map<Long, Long> cityOfDriver = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public synchronized void rebuild() {
+        loadsByCity.clear();
+        cityOfDriver.clear();
+        Map<Long, Long> deliveriesByDriver = new HashMap<>();
+        for (DriverLoad driverLoad: deliveryRepository.countDeliveriesByDriver()){
+            deliveriesByDriver.put(driverLoad.getDriverId(), driverLoad.getDeliveries());
+        }
+        // the archived deliveries count as much as the recent ones
+        for (DriverLoad driverLoad: deliverySummaryRepository.countDeliveriesByDriver()){
+            deliveriesByDriver.merge(driverLoad.getDriverId(), driverLoad.getDeliveries(), Long::sum);
+        }
+        for (Driver driver: driverRepository.findAll()){
+            register(driver, deliveriesByDriver.getOrDefault(driver.getId(), 0L));
+        }
+    }
+
+    public synchronized void register(Driver driver) {
+        Long previousCityId = cityOfDriver.get(driver.getId());
+        long load = previousCityId == null ? 0 : loadsByCity.get(previousCityId).remove(driver.getId());
+        register(driver, load);
+    }
+
+    public synchronized void unregister(Driver driver) {
+        Long cityId = cityOfDriver.remove(driver.getId());
+        if (cityId != null){
+            loadsByCity.get(cityId).remove(driver.getId());
+        }
+    }
+
+    public void recordDelivery(Driver driver) {
+        adjust(driver, 1);
+    }
+
+    public void removeDelivery(Driver driver) {
+        adjust(driver, -1);
+    }
+
+    public Driver leastBusy(Long cityId, Predicate<Driver> available) {
+        CityLoads cityLoads = loadsByCity.get(cityId);
+        return cityLoads == null ? null : cityLoads.leastBusy(available);
+    }
+
+    public Long cityOf(Long driverId) {
+        return cityOfDriver.get(driverId);
+    }
+
+    public int driverCount(Long cityId) {
+        CityLoads cityLoads = loadsByCity.get(cityId);
+        return cityLoads == null ? 0 : cityLoads.size();
+    }
+
+    private void adjust(Driver driver, long deliveries) {
+        Long cityId = cityOfDriver.get(driver.getId());
+        CityLoads cityLoads = cityId == null ? null : loadsByCity.get(cityId);
+        if (cityLoads != null){
+            cityLoads.adjust(driver.getId(), deliveries);
+        }
+    }
+
+    private void register(Driver driver, long load) {
+        if (driver.getCity() == null){
+            return;
+        }
+        Long cityId = driver.getCity().getId();
+        cityOfDriver.put(driver.getId(), cityId);
+        loadsByCity.computeIfAbsent(cityId, id -> new CityLoads()).add(driver, load);
+    }
+
+    // an indexed binary min-heap ordered by amount of deliveries, ties going to the older driver
+    private static class CityLoads {
+        private Driver[] drivers = new Driver[16];
+        private long[] loads = new long[16];
+        private int size;
+        private final Map<Long, Integer> positions = new HashMap<>();
+
+        synchronized void add(Driver driver, long load) {
+            if (size == drivers.length){
+                drivers = Arrays.copyOf(drivers, size * 2);
+                loads = Arrays.copyOf(loads, size * 2);
+            }
+            drivers[size] = driver;
+            loads[size] = load;
+            positions.put(driver.getId(), size);
+            siftUp(size++);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long remove(Long driverId) {
+            Integer position = positions.remove(driverId);
+            if (position == null){
+                return 0;
+            }
+            long load = loads[position];
+            size--;
+            if (position != size){
+                move(size, position);
+                siftDown(position);
+                siftUp(position);
+            }
+            drivers[size] = null;
+            return load;
+        }
+
+        synchronized void adjust(Long driverId, long deliveries) {
+            Integer position = positions.get(driverId);
+            if (position != null){
+                loads[position] += deliveries;
+                siftDown(position);
+                siftUp(position);
+            }
+        }
+
+        synchronized Driver leastBusy(Predicate<Driver> available) {
+            if (size == 0){
+                return null;
+            }
+            // walks the heap in load order, only expanding the children of drivers that aren't available
+            PriorityQueue<Integer> candidates = new PriorityQueue<>(this::compare);
+            candidates.add(0);
+            while (!candidates.isEmpty()){
+                int position = candidates.poll();
+                if (available.test(drivers[position])){
+                    return drivers[position];
+                }
+                int left = 2 * position + 1;
+                if (left < size){
+                    candidates.add(left);
+                }
+                if (left + 1 < size){
+                    candidates.add(left + 1);
+                }
+            }
+            return null;
+        }
+
+        private int compare(int i, int j) {
+            int byLoad = Long.compare(loads[i], loads[j]);
+            return byLoad != 0 ? byLoad : Long.compare(drivers[i].getId(), drivers[j].getId());
+        }
+
+        private void siftUp(int position) {
+            while (position > 0){
+                int parent = (position - 1) / 2;
+                if (compare(position, parent) >= 0){
+                    return;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position) {
+            while (true){
+                int smallest = position;
+                int left = 2 * position + 1;
+                if (left < size && compare(left, smallest) < 0){
+                    smallest = left;
+                }
+                if (left + 1 < size && compare(left + 1, smallest) < 0){
+                    smallest = left + 1;
+                }
+                if (smallest == position){
+                    return;
+                }
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Driver driver = drivers[i];
+            long load = loads[i];
+            move(j, i);
+            drivers[j] = driver;
+            loads[j] = load;
+            positions.put(driver.getId(), j);
+        }
+
+        private void move(int from, int to) {
+            drivers[to] = drivers[from];
+            loads[to] = loads[from];
+            positions.put(drivers[to].getId(), to);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.walt.index;
+
+import com.walt.model.DriverDistance;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the last rank report of every city (and of all cities), which stays valid as long as
+ * the leaderboard's version of that city didn't change. While one caller refreshes a report
+ * the others keep getting the previous one.
+ */
+@Component
+public class DriverRankReportCache {
+
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private final Map<Long, CachedReport> reports = new ConcurrentHashMap<>();
+    private Counter hits;
+    private Counter staleHits;
+    private Counter misses;
+    private Timer refreshTimer;
+
+    @PostConstruct
+    public void registerMetrics() {
+        hits = meterRegistry.counter("walt.rank.report.cache.requests", "result", "hit");
+        staleHits = meterRegistry.counter("walt.rank.report.cache.requests", "result", "stale");
+        misses = meterRegistry.counter("walt.rank.report.cache.requests", "result", "miss");
+        refreshTimer = meterRegistry.timer("walt.rank.report.cache.refresh");
+        Gauge.builder("walt.rank.report.cache.hit.ratio", this, DriverRankReportCache::getHitRatio)
+                .register(meterRegistry);
+    }
+
+    public List<DriverDistance> getRanking(int limit) {
+        return reportOf(DriverDistanceLeaderboard.ALL_CITIES, limit);
+    }
+
+    public List<DriverDistance> getRankingByCity(Long cityId, int limit) {
+        return reportOf(cityId, limit);
+    }
+
+    // stale reports count as hits since they're served without computing anything
+    public double getHitRatio() {
+        double served = hits.count() + staleHits.count();
+        double total = served + misses.count();
+        return total == 0 ? 0 : served / total;
+    }
+
+    // a top-N report is cut from the full one while it's current, otherwise it only walks the first drivers of the leaderboard
+    private List<DriverDistance> reportOf(Long cityId, int limit) {
+        if (limit == Integer.MAX_VALUE){
+            return reportOf(cityId);
+        }
+        CachedReport cached = reports.get(cityId);
+        Snapshot snapshot = cached == null ? null : cached.snapshot;
+        if (snapshot != null && snapshot.version == leaderboard.getVersion(cityId)){
+            hits.increment();
+            return limit(snapshot.report, limit);
+        }
+        return DriverDistanceLeaderboard.ALL_CITIES.equals(cityId)
+                ? leaderboard.getRanking(limit)
+                : leaderboard.getRankingByCity(cityId, limit);
+    }
+
+    private List<DriverDistance> reportOf(Long cityId) {
+        CachedReport cached = reports.computeIfAbsent(cityId, id -> new CachedReport());
+        long version = leaderboard.getVersion(cityId);
+        Snapshot snapshot = cached.snapshot;
+        if (snapshot != null && snapshot.version == version){
+            hits.increment();
+            return snapshot.report;
+        }
+        if (snapshot != null && !cached.refreshing.compareAndSet(false, true)){
+            staleHits.increment();
+            return snapshot.report;
+        }
+        // the first report of a city is computed by every caller that asks for it before it's ready
+        misses.increment();
+        try {
+            List<DriverDistance> report = refreshTimer.record(() -> Collections.unmodifiableList(compute(cityId)));
+            Snapshot previous = cached.snapshot;
+            if (previous == null || previous.version < version){
+                cached.snapshot = new Snapshot(version, report);
+            }
+            return report;
+        } finally {
+            if (snapshot != null){
+                cached.refreshing.set(false);
+            }
+        }
+    }
+
+    private List<DriverDistance> compute(Long cityId) {
+        return DriverDistanceLeaderboard.ALL_CITIES.equals(cityId)
+                ? leaderboard.getRanking(Integer.MAX_VALUE)
+                : leaderboard.getRankingByCity(cityId, Integer.MAX_VALUE);
+    }
+
+    private List<DriverDistance> limit(List<DriverDistance> report, int limit) {
+        return report.size() <= limit ? report : report.subList(0, limit);
+    }
+
+    private static class CachedReport {
+        private volatile Snapshot snapshot;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final List<DriverDistance> report;
+
+        Snapshot(long version, List<DriverDistance> report) {
+            this.version = version;
+            this.report = report;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import com.walt.model.NamedEntity;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Keeps the in-memory indexes in sync with drivers and deliveries that are saved or removed through any
+ * repository, once their transaction is committed.
+ */
+@Component
+public class EntityChangeListener implements PostCommitInsertEventListener, PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+    @Autowired
+    DriverLoadIndex loadIndex;
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+    @Autowired
+    ReferenceDataCache referenceDataCache;
+    @Autowired
+    DriverAvailabilityIndex availabilityIndex;
+    @Autowired
+    DeliveryIndexes deliveryIndexes;
+
+    @PostConstruct
+    public void register() {
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, this);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, this);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof NamedEntity){
+            referenceDataCache.evict((NamedEntity) event.getEntity());
+        }
+        if (event.getEntity() instanceof Driver){
+            loadIndex.register((Driver) event.getEntity());
+            leaderboard.register((Driver) event.getEntity());
+            driversChanged((Driver) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (event.getEntity() instanceof NamedEntity){
+            referenceDataCache.evict((NamedEntity) event.getEntity());
+        }
+        if (event.getEntity() instanceof Driver){
+            loadIndex.register((Driver) event.getEntity());
+            leaderboard.register((Driver) event.getEntity());
+            driversChanged((Driver) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getEntity() instanceof NamedEntity){
+            referenceDataCache.evict((NamedEntity) event.getEntity());
+        }
+        if (event.getEntity() instanceof Driver){
+            loadIndex.unregister((Driver) event.getEntity());
+            leaderboard.unregister((Driver) event.getEntity());
+        }
+        if (event.getEntity() instanceof Delivery){
+            deliveryCancelled((Delivery) event.getEntity());
+        }
+    }
+
+    private void driversChanged(Driver driver) {
+        if (driver.getCity() != null){
+            availabilityIndex.driversChanged(driver.getCity().getId());
+        }
+    }
+
+    // frees the driver's hour, so it can be booked again and isn't remembered as full, and takes the delivery
+    // out of the driver's load and distances
+    private void deliveryCancelled(Delivery delivery) {
+        Long driverId = driverIdOf(delivery);
+        Driver driver = driverId == null ? null : leaderboard.getDriver(driverId);
+        if (driver != null){
+            deliveryIndexes.removeDelivery(driver, delivery, true);
+        }
+    }
+
+    // the driver of a delivery is lazy, and its session is gone by the time the delete is committed
+    private Long driverIdOf(Delivery delivery) {
+        Driver driver = delivery.getDriver();
+        if (driver instanceof HibernateProxy){
+            return (Long) ((HibernateProxy) driver).getHibernateLazyInitializer().getIdentifier();
+        }
+        return driver == null ? null : driver.getId();
+    }
+
+    @Override
+    public void onPostInsertCommitFailed(PostInsertEvent event) {
+    }
+
+    @Override
+    public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+    }
+
+    @Override
+    public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return true;
+    }
+
+    // still abstract in this version of hibernate, which only calls the correctly spelled one above
+    @Deprecated
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+}
@@ -0,0 +1,73 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The orders placed lately with an idempotency key, so a retry gets the original delivery back (or waits for it,
+ * if the original order is still being assigned) instead of taking another driver. Bounded and expiring,
+ * the keys that fell out are still found on their delivery in the database.
+ */
+@Component
+public class IdempotencyKeyCache {
+
+    @Value("${walt.idempotency.max-size:100000}")
+    int maxSize;
+    @Value("${walt.idempotency.ttl-minutes:60}")
+    long ttlMinutes;
+    @Value("${walt.idempotency.wait-millis:30000}")
+    long waitMillis;
+
+    private Map<String, Entry> entries;
+
+    @PostConstruct
+    public void init() {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    // how long a retry waits for the original order before giving up
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    // the order already placed with the key, or null after making the given order the key's one
+    public synchronized CompletableFuture<Delivery> putIfAbsent(String key, CompletableFuture<Delivery> order) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > now){
+            return entry.order;
+        }
+        entries.put(key, new Entry(order, now + TimeUnit.MINUTES.toMillis(ttlMinutes)));
+        return null;
+    }
+
+    // forgets a failed order, so the next retry places it again
+    public synchronized void remove(String key, CompletableFuture<Delivery> order) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.order == order){
+            entries.remove(key);
+        }
+    }
+
+    private static class Entry {
+        private final CompletableFuture<Delivery> order;
+        private final long expiresAt;
+
+        Entry(CompletableFuture<Delivery> order, long expiresAt) {
+            this.order = order;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.walt.index;
+
+import com.walt.dao.CityRepository;
+import com.walt.dao.CustomerRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.dao.RestaurantRepository;
+import com.walt.model.City;
+import com.walt.model.Customer;
+import com.walt.model.Driver;
+import com.walt.model.NamedEntity;
+import com.walt.model.Restaurant;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Bounded LRU caches of the by-name lookups of the reference entities, which rarely change,
+ * evicted by {@link EntityChangeListener} once a change of the entity is committed. Hits and misses
+ * are counted as walt.reference.cache.gets, tagged with the cache and the result.
+ */
+@Component
+public class ReferenceDataCache {
+
+    @Autowired
+    CustomerRepository customerRepository;
+    @Autowired
+    RestaurantRepository restaurantRepository;
+    @Autowired
+    CityRepository cityRepository;
+    @Autowired
+    DriverRepository driverRepository;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${walt.reference-cache.max-size:10000}")
+    int maxSize;
+
+    private ByName<Customer> customers;
+    private ByName<Restaurant> restaurants;
+    private ByName<City> cities;
+    private ByName<Driver> drivers;
+
+    @PostConstruct
+    public void init() {
+        customers = new ByName<>("customer", maxSize, customerRepository::findByName, meterRegistry);
+        restaurants = new ByName<>("restaurant", maxSize, restaurantRepository::findByName, meterRegistry);
+        cities = new ByName<>("city", maxSize, cityRepository::findByName, meterRegistry);
+        drivers = new ByName<>("driver", maxSize, driverRepository::findByName, meterRegistry);
+    }
+
+    public Customer findCustomer(String name) {
+        return customers.find(name);
+    }
+
+    public Restaurant findRestaurant(String name) {
+        return restaurants.find(name);
+    }
+
+    public City findCity(String name) {
+        return cities.find(name);
+    }
+
+    public Driver findDriver(String name) {
+        return drivers.find(name);
+    }
+
+    public void evict(NamedEntity entity) {
+        if (entity instanceof Customer){
+            customers.evict(entity);
+        } else if (entity instanceof Restaurant){
+            restaurants.evict(entity);
+        } else if (entity instanceof City){
+            cities.evict(entity);
+        } else if (entity instanceof Driver){
+            drivers.evict(entity);
+        }
+    }
+
+    public void clear() {
+        customers.clear();
+        restaurants.clear();
+        cities.clear();
+        drivers.clear();
+    }
+
+    private static class ByName<T extends NamedEntity> {
+        private final Function<String, T> loader;
+        private final Map<String, T> entries;
+        private final Counter hits;
+        private final Counter misses;
+        // bumped on every eviction, so a load that ran meanwhile doesn't put back what was evicted
+        private long generation;
+
+        ByName(String cache, int maxSize, Function<String, T> loader, MeterRegistry meterRegistry) {
+            this.loader = loader;
+            this.entries = new LinkedHashMap<String, T>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+                    return size() > maxSize;
+                }
+            };
+            hits = meterRegistry.counter("walt.reference.cache.gets", "cache", cache, "result", "hit");
+            misses = meterRegistry.counter("walt.reference.cache.gets", "cache", cache, "result", "miss");
+            meterRegistry.gauge("walt.reference.cache.size", Tags.of("cache", cache), this, ByName::size);
+        }
+
+        T find(String name) {
+            long loadedGeneration;
+            synchronized (this){
+                T entity = entries.get(name);
+                if (entity != null){
+                    hits.increment();
+                    return entity;
+                }
+                loadedGeneration = generation;
+            }
+            misses.increment();
+            // misses aren't cached, so an entity that's added later is found without waiting for an eviction
+            T entity = loader.apply(name);
+            if (entity != null){
+                synchronized (this){
+                    if (generation == loadedGeneration){
+                        entries.put(name, entity);
+                    }
+                }
+            }
+            return entity;
+        }
+
+        // the entity may have been renamed, so it's looked up by id as well as by its current name
+        synchronized void evict(NamedEntity entity) {
+            generation++;
+            entries.remove(entity.getName());
+            entries.values().removeIf(cached -> cached.getId().equals(entity.getId()));
+        }
+
+        synchronized void clear() {
+            generation++;
+            entries.clear();
+        }
+
+        synchronized double size() {
+            return entries.size();
+        }
+    }
+}
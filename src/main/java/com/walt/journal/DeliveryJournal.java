@@ -0,0 +1,405 @@
+package com.walt.journal;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.index.DeliveryIndexes;
+import com.walt.index.DriverAvailabilityIndex;
+import com.walt.index.DriverDistanceLeaderboard;
+import com.walt.index.DriverDistanceRollups;
+import com.walt.index.DriverLoadIndex;
+import com.walt.model.Customer;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import com.walt.model.Restaurant;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.exception.ConstraintViolationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind persistence of deliveries: they're appended to a memory-mapped file, which survives a crash
+ * of the process, and a background thread writes them to the database in batches. Whatever wasn't written
+ * yet is written when the journal is opened again. The file is forced to disk every sync-millis, or on every
+ * append when that's 0, so a crash of the machine loses at most the deliveries of the last interval.
+ *
+ * A delivery the database refuses when it's flushed (its driver was booked for that hour elsewhere, or its
+ * idempotency key was already used) is taken back out of the indexes, counted, and appended to a dead-letter
+ * file next to the journal, since its order was already reported as placed.
+ *
+ * The file starts with a header of the current generation and the position up to which records were flushed,
+ * followed by fixed-size records, each with room for the longest idempotency key. Once everything is flushed
+ * and the file is full, writing starts over from the top with the next generation, so older records left
+ * further in the file are never replayed.
+ */
+@Component
+public class DeliveryJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryJournal.class);
+
+    private static final int HEADER_SIZE = 16;
+    // generation, driver, restaurant, customer, delivery time, distance, idempotency key length and its chars,
+    // rounded up to a multiple of 8
+    private static final int KEY_OFFSET = 52;
+    private static final int RECORD_SIZE = 184;
+
+    @Autowired
+    DeliveryRepository deliveryRepository;
+    @Autowired
+    DriverRepository driverRepository;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    DriverAvailabilityIndex availabilityIndex;
+    @Autowired
+    DriverLoadIndex loadIndex;
+    @Autowired
+    DriverDistanceLeaderboard leaderboard;
+    @Autowired
+    DriverDistanceRollups rollups;
+    @Autowired
+    DeliveryIndexes deliveryIndexes;
+    @Autowired
+    MeterRegistry meterRegistry;
+    @PersistenceContext
+    EntityManager entityManager;
+
+    @Value("${walt.write-behind.enabled:false}")
+    boolean enabledOnStartup;
+    @Value("${walt.write-behind.journal-file:walt-delivery-journal.dat}")
+    String journalFile;
+    @Value("${walt.write-behind.journal-size-mb:64}")
+    int journalSizeMb;
+    @Value("${walt.write-behind.batch-size:500}")
+    int batchSize;
+    @Value("${walt.write-behind.flush-millis:200}")
+    long flushMillis;
+    @Value("${walt.write-behind.sync-millis:10}")
+    long syncMillis;
+
+    private final Object flushLock = new Object();
+    private volatile boolean enabled;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private Path deadLetterFile;
+    private ScheduledExecutorService flusher;
+    private long generation;
+    private int writePosition;
+    private int flushedPosition;
+
+    @PostConstruct
+    public void init() {
+        if (enabledOnStartup){
+            open(Paths.get(journalFile));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void open(Path file) {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, journalSizeMb * 1024L * 1024L);
+            deadLetterFile = file.resolveSibling(file.getFileName() + ".dead");
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        generation = Math.max(1, buffer.getLong(0));
+        flushedPosition = Math.max(HEADER_SIZE, (int) buffer.getLong(8));
+        writePosition = flushedPosition;
+        while (writePosition + RECORD_SIZE <= buffer.capacity() && buffer.getLong(writePosition) == generation){
+            writePosition += RECORD_SIZE;
+        }
+        writeHeader();
+
+        if (writePosition > flushedPosition){
+            log.info("Replaying {} deliveries from the journal", (writePosition - flushedPosition) / RECORD_SIZE);
+            flushPending();
+            // the indexes were built from the database before the replayed deliveries were in it
+            availabilityIndex.rebuild();
+            loadIndex.rebuild();
+            leaderboard.rebuild();
+            rollups.rebuild();
+        }
+        enabled = true;
+        // one thread flushes to the database, the other syncs the file, so a slow flush doesn't hold back the syncs
+        flusher = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "delivery-journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        if (syncMillis > 0){
+            flusher.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        ScheduledExecutorService flusher;
+        synchronized (this){
+            if (!enabled){
+                return;
+            }
+            enabled = false;
+            flusher = this.flusher;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+        synchronized (this){
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException e){
+                log.warn("Couldn't close the delivery journal", e);
+            }
+        }
+    }
+
+    public void append(Delivery delivery) {
+        while (true){
+            synchronized (this){
+                if (writePosition + RECORD_SIZE <= buffer.capacity()){
+                    buffer.putLong(writePosition + 8, delivery.getDriver().getId());
+                    buffer.putLong(writePosition + 16, delivery.getRestaurant().getId());
+                    buffer.putLong(writePosition + 24, delivery.getCustomer().getId());
+                    buffer.putLong(writePosition + 32, delivery.getDeliveryTime().getTime());
+                    buffer.putDouble(writePosition + 40, delivery.getDistance());
+                    writeKey(writePosition, delivery.getIdempotencyKey());
+                    // the generation goes last, it's what makes the record part of the journal
+                    buffer.putLong(writePosition, generation);
+                    writePosition += RECORD_SIZE;
+                    if (syncMillis <= 0){
+                        buffer.force();
+                    }
+                    return;
+                }
+            }
+            // the journal is full, so the order waits for the database like it would without write-behind
+            flushPending();
+            synchronized (this){
+                if (flushedPosition == writePosition){
+                    generation++;
+                    writePosition = HEADER_SIZE;
+                    flushedPosition = HEADER_SIZE;
+                    writeHeader();
+                }
+            }
+        }
+    }
+
+    public void flushPending() {
+        synchronized (flushLock){
+            while (true){
+                int from;
+                int to;
+                List<Delivery> deliveries = new ArrayList<>();
+                synchronized (this){
+                    from = flushedPosition;
+                    to = Math.min(writePosition, from + batchSize * RECORD_SIZE);
+                    if (from == to){
+                        return;
+                    }
+                    for (int position = from; position < to; position += RECORD_SIZE){
+                        deliveries.add(readRecord(position));
+                    }
+                }
+                write(deliveries, from);
+                advance(to);
+            }
+        }
+    }
+
+    private synchronized void advance(int position) {
+        flushedPosition = position;
+        writeHeader();
+    }
+
+    private void flushQuietly() {
+        try {
+            flushPending();
+        } catch (RuntimeException e){
+            // the records stay in the journal and are tried again on the next round
+            log.warn("Couldn't flush the delivery journal", e);
+        }
+    }
+
+    private void sync() {
+        MappedByteBuffer buffer;
+        synchronized (this){
+            buffer = this.buffer;
+        }
+        buffer.force();
+    }
+
+    // the records of the batch start at the position
+    private void write(List<Delivery> deliveries, int from) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        try {
+            transactionTemplate.execute(status -> deliveryRepository.saveAll(withReferences(deliveries)));
+        } catch (DataIntegrityViolationException e){
+            // one of the deliveries conflicts with the database, the rest of the batch is still written
+            for (int i = 0; i < deliveries.size(); i++){
+                Delivery delivery = deliveries.get(i);
+                try {
+                    transactionTemplate.execute(status -> deliveryRepository.save(withReferences(delivery)));
+                } catch (DataIntegrityViolationException conflict){
+                    if (!isWritten(delivery, transactionTemplate)){
+                        drop(delivery, conflict);
+                    }
+                }
+                // so a failure further on doesn't make the written records conflict with themselves when they're retried
+                advance(from + (i + 1) * RECORD_SIZE);
+            }
+        }
+    }
+
+    // a record written just before a crash, which left the flushed position behind it, conflicts with its own row.
+    // Without an idempotency key that row is only told apart from another order's by the driver, hour, restaurant and customer
+    private boolean isWritten(Delivery delivery, TransactionTemplate transactionTemplate) {
+        return transactionTemplate.execute(status -> {
+            Delivery written = deliveryRepository.findFirstByDriverAndDeliveryTime(
+                    entityManager.getReference(Driver.class, delivery.getDriver().getId()), delivery.getDeliveryTime());
+            return written != null
+                    && written.getRestaurant().getId().equals(delivery.getRestaurant().getId())
+                    && written.getCustomer().getId().equals(delivery.getCustomer().getId())
+                    && Objects.equals(written.getIdempotencyKey(), delivery.getIdempotencyKey());
+        });
+    }
+
+    // takes a delivery the database refused back out of the indexes, which counted it when it was appended
+    private void drop(Delivery delivery, DataIntegrityViolationException conflict) {
+        log.warn("Dropping journaled delivery of driver {} at {}: {}",
+                delivery.getDriver().getId(), delivery.getDeliveryTime(), conflict.getMessage());
+        boolean driverBooked = isConstraintViolation(conflict, Delivery.DRIVER_SLOT_CONSTRAINT);
+        Driver driver = driverRepository.findById(delivery.getDriver().getId()).orElse(null);
+        if (driver != null){
+            // if the driver was booked, it's by the delivery that was saved instead, which keeps the hour
+            deliveryIndexes.removeDelivery(driver, delivery, !driverBooked);
+        }
+        meterRegistry.counter("walt.journal.dropped",
+                "reason", driverBooked ? "driver_booked" : "conflict").increment();
+        writeDeadLetter(delivery, conflict);
+    }
+
+    // driver, restaurant, customer, delivery time, distance, idempotency key and the reason, one line per delivery
+    private void writeDeadLetter(Delivery delivery, DataIntegrityViolationException conflict) {
+        String line = String.join(",",
+                String.valueOf(delivery.getDriver().getId()),
+                String.valueOf(delivery.getRestaurant().getId()),
+                String.valueOf(delivery.getCustomer().getId()),
+                String.valueOf(delivery.getDeliveryTime().getTime()),
+                String.valueOf(delivery.getDistance()),
+                delivery.getIdempotencyKey() == null ? "" : delivery.getIdempotencyKey(),
+                String.valueOf(conflict.getMostSpecificCause().getMessage()).replaceAll("[\\r\\n,]", " "));
+        try {
+            Files.write(deadLetterFile, Collections.singletonList(line), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e){
+            log.error("Couldn't write the dropped delivery to {}: {}", deadLetterFile, line, e);
+        }
+    }
+
+    private boolean isConstraintViolation(DataIntegrityViolationException e, String constraint) {
+        if (!(e.getCause() instanceof ConstraintViolationException)){
+            return false;
+        }
+        String constraintName = ((ConstraintViolationException) e.getCause()).getConstraintName();
+        return constraintName != null && constraintName.toUpperCase().contains(constraint);
+    }
+
+    private List<Delivery> withReferences(List<Delivery> deliveries) {
+        List<Delivery> attached = new ArrayList<>(deliveries.size());
+        for (Delivery delivery: deliveries){
+            attached.add(withReferences(delivery));
+        }
+        return attached;
+    }
+
+    // references don't load the driver, restaurant and customer, only their ids are needed for the insert
+    private Delivery withReferences(Delivery delivery) {
+        Delivery attached = new Delivery(entityManager.getReference(Driver.class, delivery.getDriver().getId()),
+                entityManager.getReference(Restaurant.class, delivery.getRestaurant().getId()),
+                entityManager.getReference(Customer.class, delivery.getCustomer().getId()),
+                delivery.getDeliveryTime());
+        attached.setDistance(delivery.getDistance());
+        attached.setIdempotencyKey(delivery.getIdempotencyKey());
+        return attached;
+    }
+
+    private Delivery readRecord(int position) {
+        Driver driver = new Driver();
+        driver.setId(buffer.getLong(position + 8));
+        Restaurant restaurant = new Restaurant();
+        restaurant.setId(buffer.getLong(position + 16));
+        Customer customer = new Customer();
+        customer.setId(buffer.getLong(position + 24));
+        Delivery delivery = new Delivery(driver, restaurant, customer, new Date(buffer.getLong(position + 32)));
+        delivery.setDistance(buffer.getDouble(position + 40));
+        delivery.setIdempotencyKey(readKey(position));
+        return delivery;
+    }
+
+    // -1 for an order placed without a key
+    private void writeKey(int position, String key) {
+        if (key == null){
+            buffer.putInt(position + 48, -1);
+            return;
+        }
+        buffer.putInt(position + 48, key.length());
+        for (int i = 0; i < key.length(); i++){
+            buffer.putChar(position + KEY_OFFSET + 2 * i, key.charAt(i));
+        }
+    }
+
+    private String readKey(int position) {
+        int length = buffer.getInt(position + 48);
+        if (length < 0){
+            return null;
+        }
+        char[] key = new char[length];
+        for (int i = 0; i < length; i++){
+            key[i] = buffer.getChar(position + KEY_OFFSET + 2 * i);
+        }
+        return new String(key);
+    }
+
+    private void writeHeader() {
+        buffer.putLong(0, generation);
+        buffer.putLong(8, flushedPosition);
+    }
+}
@@ -0,0 +1,72 @@
+package com.walt.metrics;
+
+import com.walt.model.City;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timers of the stages of order assignment and of the rank reports, and counters of the rejected orders per city.
+ */
+@Component
+public class OrderMetrics {
+
+    public static final String CUSTOMER_LOOKUP = "customer_lookup";
+    public static final String AVAILABILITY_SCAN = "availability_scan";
+    public static final String LEAST_BUSY_SCAN = "least_busy_scan";
+    public static final String SAVE = "save";
+    public static final String TOTAL = "total";
+
+    public static final String ALL_CITIES_REPORT = "all_cities";
+    public static final String CITY_REPORT = "city";
+    public static final String ALL_CITIES_RANGE_REPORT = "all_cities_range";
+    public static final String CITY_RANGE_REPORT = "city_range";
+    public static final String ALL_CITIES_PAGE_REPORT = "all_cities_page";
+    public static final String CITY_PAGE_REPORT = "city_page";
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public Timer.Sample start() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void stopOrderStage(Timer.Sample sample, String stage) {
+        sample.stop(timer("walt.order.stage", "stage", stage));
+    }
+
+    public void stopRankReport(Timer.Sample sample, String scope) {
+        sample.stop(timer("walt.rank.report", "scope", scope));
+    }
+
+    public void countRejectedOrder(Exception e, City city) {
+        meterRegistry.counter("walt.order.rejected",
+                "exception", e.getClass().getSimpleName(),
+                "city", city == null || city.getName() == null ? "unknown" : city.getName()).increment();
+    }
+
+    // retries of orders that were already placed, answered with the original delivery
+    public void countDuplicateOrder() {
+        meterRegistry.counter("walt.order.duplicate").increment();
+    }
+
+    // orders for a city and hour already known to be full, rejected without looking at the drivers
+    public void countFastRejectedOrder(City city) {
+        meterRegistry.counter("walt.order.fast.rejected",
+                "city", city.getName() == null ? "unknown" : city.getName()).increment();
+    }
+
+    private Timer timer(String name, String tag, String value) {
+        return timers.computeIfAbsent(name + ":" + value, key -> Timer.builder(name)
+                .tag(tag, value)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+}
@@ -0,0 +1,46 @@
+package com.walt.metrics;
+
+import org.hibernate.BaseSessionEventListener;
+
+/**
+ * Created by hibernate for every session, adds what the session runs to the counts of the current service call.
+ */
+public class QueryCountingSessionListener extends BaseSessionEventListener {
+
+    private long executionStart;
+
+    @Override
+    public void jdbcPrepareStatementStart() {
+        QueryStatistics.QueryCounts counts = QueryStatistics.current();
+        if (counts != null){
+            counts.statements++;
+        }
+    }
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        executionStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        addExecutionTime();
+    }
+
+    @Override
+    public void jdbcExecuteBatchStart() {
+        executionStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteBatchEnd() {
+        addExecutionTime();
+    }
+
+    private void addExecutionTime() {
+        QueryStatistics.QueryCounts counts = QueryStatistics.current();
+        if (counts != null){
+            counts.jdbcNanos += System.nanoTime() - executionStart;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.walt.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostLoadEvent;
+import org.hibernate.event.spi.PostLoadEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the SQL statements, entity loads and JDBC time of every service call on the thread that runs it,
+ * publishes them per call and warns about calls that go over the statement budget, which is how an N+1 shows up.
+ * The budget is per order, so a batch of orders may run that many statements for each of them.
+ */
+@Component
+public class QueryStatistics implements PostLoadEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryStatistics.class);
+
+    // the counts of the call running on the thread, null outside of a call
+    private static final ThreadLocal<QueryCounts> current = new ThreadLocal<>();
+    private static final ThreadLocal<QueryCounts> last = new ThreadLocal<>();
+
+    @Value("${walt.query-budget.statements:10}")
+    int statementBudget;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @PostConstruct
+    public void register() {
+        entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class)
+                .appendListeners(EventType.POST_LOAD, this);
+    }
+
+    // calls made from within another call are counted as part of the outer one
+    public <T> T measure(String call, Callable<T> work) throws Exception {
+        return measure(call, 1, work);
+    }
+
+    // a call that works on a batch of orders gets the budget of every order in it
+    public <T> T measure(String call, int orders, Callable<T> work) throws Exception {
+        if (current.get() != null){
+            return work.call();
+        }
+        QueryCounts counts = new QueryCounts();
+        current.set(counts);
+        try {
+            return work.call();
+        } finally {
+            current.remove();
+            last.set(counts);
+            record(call, counts, (long) statementBudget * Math.max(1, orders));
+        }
+    }
+
+    // what the last call that finished on this thread did
+    public QueryCounts getLastCall() {
+        return last.get();
+    }
+
+    @Override
+    public void onPostLoad(PostLoadEvent event) {
+        QueryCounts counts = current.get();
+        if (counts != null){
+            counts.entityLoads++;
+        }
+    }
+
+    static QueryCounts current() {
+        return current.get();
+    }
+
+    private void record(String call, QueryCounts counts, long budget) {
+        DistributionSummary.builder("walt.call.statements").tag("call", call).register(meterRegistry).record(counts.statements);
+        DistributionSummary.builder("walt.call.entity.loads").tag("call", call).register(meterRegistry).record(counts.entityLoads);
+        Timer.builder("walt.call.jdbc.time").tag("call", call).register(meterRegistry).record(counts.jdbcNanos, TimeUnit.NANOSECONDS);
+        if (counts.statements > budget){
+            meterRegistry.counter("walt.call.over.budget", "call", call).increment();
+            log.warn("{} ran {} SQL statements, over the budget of {} ({} entity loads, {} ms in JDBC)",
+                    call, counts.statements, budget, counts.entityLoads, TimeUnit.NANOSECONDS.toMillis(counts.jdbcNanos));
+        }
+    }
+
+    public static class QueryCounts {
+        long statements;
+        long entityLoads;
+        long jdbcNanos;
+
+        public long getStatements() {
+            return statements;
+        }
+
+        public long getEntityLoads() {
+            return entityLoads;
+        }
+
+        public long getJdbcNanos() {
+            return jdbcNanos;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.walt.metrics;
+
+import com.walt.WaltService;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Wraps every {@link WaltService} so each of its calls is measured by {@link QueryStatistics}.
+ */
+@Component
+public class ServiceCallStatistics implements BeanPostProcessor {
+
+    // looked up on the first call, so the post processor doesn't pull the persistence beans in early
+    private final ObjectProvider<QueryStatistics> queryStatistics;
+
+    public ServiceCallStatistics(ObjectProvider<QueryStatistics> queryStatistics) {
+        this.queryStatistics = queryStatistics;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof WaltService)){
+            return bean;
+        }
+        return Proxy.newProxyInstance(WaltService.class.getClassLoader(), new Class<?>[]{WaltService.class},
+                (proxy, method, args) -> invoke(bean, method, args));
+    }
+
+    private Object invoke(Object service, Method method, Object[] args) throws Throwable {
+        try {
+            // async orders are measured on the partition that runs them, the caller only enqueues
+            if (method.getDeclaringClass() == Object.class || CompletableFuture.class.isAssignableFrom(method.getReturnType())){
+                return call(service, method, args);
+            }
+            return queryStatistics.getObject().measure(nameOf(method), ordersIn(args), () -> call(service, method, args));
+        } catch (CallFailedException e){
+            throw e.getCause();
+        }
+    }
+
+    private Object call(Object service, Method method, Object[] args) throws CallFailedException {
+        try {
+            return method.invoke(service, args);
+        } catch (InvocationTargetException e){
+            throw new CallFailedException(e.getCause());
+        } catch (IllegalAccessException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the size of a batch call's list of orders, 1 for a call about a single order
+    static int ordersIn(Object[] args) {
+        if (args != null){
+            for (Object arg: args){
+                if (arg instanceof Collection){
+                    return ((Collection<?>) arg).size();
+                }
+            }
+        }
+        return 1;
+    }
+
+    // overloads do different work, so the parameters are part of the name
+    static String nameOf(Method method) {
+        return Arrays.stream(method.getParameterTypes())
+                .map(Class::getSimpleName)
+                .collect(Collectors.joining(",", method.getName() + "(", ")"));
+    }
+
+    private static class CallFailedException extends Exception {
+        CallFailedException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
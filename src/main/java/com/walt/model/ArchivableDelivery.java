@@ -0,0 +1,9 @@
+package com.walt.model;
+
+public interface ArchivableDelivery {
+    Long getId();
+    Long getDriverId();
+    Long getCityId();
+    Long getDeliverySlot();
+    Double getDistance();
+}
@@ -1,10 +1,21 @@
 package com.walt.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(uniqueConstraints = @UniqueConstraint(name = City.NAME_CONSTRAINT, columnNames = "name"))
 public class City extends NamedEntity{
 
+    public static final String NAME_CONSTRAINT = "UK_CITY_NAME";
+
     public City(){}
 
     public City(String name){
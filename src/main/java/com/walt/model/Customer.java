@@ -2,10 +2,15 @@ package com.walt.model;
 
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = Customer.NAME_CONSTRAINT, columnNames = "name"))
 public class Customer extends  NamedEntity{
 
+    public static final String NAME_CONSTRAINT = "UK_CUSTOMER_NAME";
+
     @ManyToOne
     City city;
     String address;
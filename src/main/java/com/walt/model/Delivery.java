@@ -5,23 +5,41 @@ import java.util.Date;
 import java.util.Random;
 
 @Entity
+@Table(uniqueConstraints = {
+                @UniqueConstraint(name = Delivery.DRIVER_SLOT_CONSTRAINT, columnNames = {"driver_id", "deliverySlot"}),
+                @UniqueConstraint(name = Delivery.IDEMPOTENCY_KEY_CONSTRAINT, columnNames = "idempotencyKey")
+        },
+        indexes = {
+                @Index(name = "IDX_DELIVERY_DRIVER_TIME", columnList = "driver_id, deliveryTime"),
+                // covers summing the distances of a driver without reading the rows
+                @Index(name = "IDX_DELIVERY_DRIVER_DISTANCE", columnList = "driver_id, distance")
+        })
 public class Delivery {
 
+    public static final String DRIVER_SLOT_CONSTRAINT = "UK_DELIVERY_DRIVER_SLOT";
+    public static final String IDEMPOTENCY_KEY_CONSTRAINT = "UK_DELIVERY_IDEMPOTENCY_KEY";
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 64;
+
     @Id
     @GeneratedValue(strategy= GenerationType.AUTO)
     private Long id;
 
-    @ManyToOne
+    // loading a delivery shouldn't load its driver, restaurant and customer with their cities along with it
+    @ManyToOne(fetch = FetchType.LAZY)
     Driver driver;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     Restaurant restaurant;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     Customer customer;
 
     Date deliveryTime;
+    Long deliverySlot;
     double distance;
+    // given by the client, so a retried order finds the delivery it already got
+    @Column(length = MAX_IDEMPOTENCY_KEY_LENGTH)
+    String idempotencyKey;
 
     public Delivery() {
     }
@@ -30,7 +48,7 @@ public class Delivery {
         this.driver = driver;
         this.restaurant = restaurant;
         this.customer = customer;
-        this.deliveryTime = deliveryTime;
+        setDeliveryTime(deliveryTime);
     }
 
     public Long getId() {
@@ -67,6 +85,11 @@ public class Delivery {
 
     public void setDeliveryTime(Date deliveryTime) {
         this.deliveryTime = deliveryTime;
+        this.deliverySlot = deliveryTime == null ? null : HourSlot.of(deliveryTime);
+    }
+
+    public Long getDeliverySlot() {
+        return deliverySlot;
     }
 
     public double getDistance() {
@@ -76,4 +99,12 @@ public class Delivery {
     public void setDistance(double distance) {
         this.distance = distance;
     }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
 }
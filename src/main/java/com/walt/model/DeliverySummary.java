@@ -0,0 +1,64 @@
+package com.walt.model;
+
+import javax.persistence.*;
+
+/**
+ * The deliveries a driver made in a city during one day, kept instead of the deliveries themselves
+ * once they're older than the archive horizon. Days rather than months, so the range reports over
+ * archived time still add up whole days.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = DeliverySummary.DRIVER_DAY_CONSTRAINT, columnNames = {"driverId", "cityId", "day"}))
+public class DeliverySummary {
+
+    public static final String DRIVER_DAY_CONSTRAINT = "UK_DELIVERY_SUMMARY_DRIVER_DAY";
+
+    @Id
+    @GeneratedValue(strategy= GenerationType.AUTO)
+    private Long id;
+
+    Long driverId;
+    Long cityId;
+    // counted like HourSlot.dayOf
+    Long day;
+    long deliveries;
+    double totalDistance;
+
+    public DeliverySummary() {
+    }
+
+    public DeliverySummary(Long driverId, Long cityId, Long day) {
+        this.driverId = driverId;
+        this.cityId = cityId;
+        this.day = day;
+    }
+
+    public void add(long deliveries, double totalDistance) {
+        this.deliveries += deliveries;
+        this.totalDistance += totalDistance;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getDriverId() {
+        return driverId;
+    }
+
+    public Long getCityId() {
+        return cityId;
+    }
+
+    public Long getDay() {
+        return day;
+    }
+
+    public long getDeliveries() {
+        return deliveries;
+    }
+
+    public double getTotalDistance() {
+        return totalDistance;
+    }
+}
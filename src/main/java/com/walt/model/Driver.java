@@ -1,10 +1,18 @@
 package com.walt.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import javax.persistence.*;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(uniqueConstraints = @UniqueConstraint(name = Driver.NAME_CONSTRAINT, columnNames = "name"))
 public class Driver extends NamedEntity {
 
+    public static final String NAME_CONSTRAINT = "UK_DRIVER_NAME";
+
     @ManyToOne
     City city;
 
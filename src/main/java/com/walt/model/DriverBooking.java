@@ -0,0 +1,9 @@
+package com.walt.model;
+
+import java.util.Date;
+
+public interface DriverBooking {
+    Long getDriverId();
+    Long getCityId();
+    Date getDeliveryTime();
+}
@@ -0,0 +1,8 @@
+package com.walt.model;
+
+public interface DriverDayDistance {
+    Long getDriverId();
+    Long getCityId();
+    Long getDay();
+    Double getTotalDistance();
+}
@@ -0,0 +1,6 @@
+package com.walt.model;
+
+public interface DriverLoad {
+    Long getDriverId();
+    Long getDeliveries();
+}
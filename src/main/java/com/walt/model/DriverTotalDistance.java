@@ -0,0 +1,6 @@
+package com.walt.model;
+
+public interface DriverTotalDistance {
+    Driver getDriver();
+    Double getTotalDistance();
+}
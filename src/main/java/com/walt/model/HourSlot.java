@@ -0,0 +1,27 @@
+package com.walt.model;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+public final class HourSlot {
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long HOURS_PER_DAY = 24;
+
+    private HourSlot() {
+    }
+
+    // each delivery takes a full hour, so any two times in the same hour compete for the same drivers
+    public static long of(Date date) {
+        return Math.floorDiv(date.getTime(), HOUR_MILLIS);
+    }
+
+    public static Date start(long hourSlot) {
+        return new Date(hourSlot * HOUR_MILLIS);
+    }
+
+    // days are counted in UTC like the hours
+    public static long dayOf(long hourSlot) {
+        return Math.floorDiv(hourSlot, HOURS_PER_DAY);
+    }
+}
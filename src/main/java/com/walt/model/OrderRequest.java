@@ -0,0 +1,27 @@
+package com.walt.model;
+
+import java.util.Date;
+
+public class OrderRequest {
+    Customer customer;
+    Restaurant restaurant;
+    Date deliveryTime;
+
+    public OrderRequest(Customer customer, Restaurant restaurant, Date deliveryTime) {
+        this.customer = customer;
+        this.restaurant = restaurant;
+        this.deliveryTime = deliveryTime;
+    }
+
+    public Customer getCustomer() {
+        return customer;
+    }
+
+    public Restaurant getRestaurant() {
+        return restaurant;
+    }
+
+    public Date getDeliveryTime() {
+        return deliveryTime;
+    }
+}
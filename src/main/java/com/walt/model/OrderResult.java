@@ -0,0 +1,37 @@
+package com.walt.model;
+
+public class OrderResult {
+    OrderRequest order;
+    Delivery delivery;
+    Exception failure;
+
+    private OrderResult(OrderRequest order, Delivery delivery, Exception failure) {
+        this.order = order;
+        this.delivery = delivery;
+        this.failure = failure;
+    }
+
+    public static OrderResult success(OrderRequest order, Delivery delivery) {
+        return new OrderResult(order, delivery, null);
+    }
+
+    public static OrderResult failure(OrderRequest order, Exception failure) {
+        return new OrderResult(order, null, failure);
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+
+    public OrderRequest getOrder() {
+        return order;
+    }
+
+    public Delivery getDelivery() {
+        return delivery;
+    }
+
+    public Exception getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,23 @@
+package com.walt.model;
+
+/**
+ * Where a page of a rank report ended: the exact total distance and id of its last driver,
+ * which is the position the next page continues from.
+ */
+public class RankCursor {
+    double totalDistance;
+    Long driverId;
+
+    public RankCursor(double totalDistance, Long driverId) {
+        this.totalDistance = totalDistance;
+        this.driverId = driverId;
+    }
+
+    public double getTotalDistance() {
+        return totalDistance;
+    }
+
+    public Long getDriverId() {
+        return driverId;
+    }
+}
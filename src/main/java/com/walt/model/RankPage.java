@@ -0,0 +1,22 @@
+package com.walt.model;
+
+import java.util.List;
+
+public class RankPage {
+    List<DriverDistance> driverDistances;
+    RankCursor next;
+
+    public RankPage(List<DriverDistance> driverDistances, RankCursor next) {
+        this.driverDistances = driverDistances;
+        this.next = next;
+    }
+
+    public List<DriverDistance> getDriverDistances() {
+        return driverDistances;
+    }
+
+    // null on the last page
+    public RankCursor getNext() {
+        return next;
+    }
+}
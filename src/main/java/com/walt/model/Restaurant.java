@@ -1,11 +1,22 @@
 package com.walt.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(uniqueConstraints = @UniqueConstraint(name = Restaurant.NAME_CONSTRAINT, columnNames = "name"))
 public class Restaurant extends NamedEntity {
 
+    public static final String NAME_CONSTRAINT = "UK_RESTAURANT_NAME";
+
     @ManyToOne
     City city;
     String address;
@@ -0,0 +1,109 @@
+package com.walt.pipeline;
+
+import com.walt.exceptions.OrderQueueFullException;
+import com.walt.model.City;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs orders off the caller's thread on a fixed set of partitions, one thread each. Every city is owned
+ * by a single partition, so the async orders of a city are assigned one at a time by the same thread, while
+ * different cities run in parallel on the other partitions. That only bounds how many orders compete over
+ * a city's drivers: synchronous and batch orders are assigned on their callers' threads, so the driver
+ * claims in the availability index are still what keeps two orders from booking the same driver.
+ *
+ * Cities are spread over the partitions by id unless they're mapped explicitly with
+ * {@code walt.partitions.cities=Tel-Aviv:0,Haifa:1}. Each city has a bounded amount of pending orders
+ * and orders over it are rejected right away.
+ */
+@Component
+public class OrderPipeline {
+
+    @Value("${walt.order-pipeline.queue-capacity:1000}")
+    int queueCapacity;
+    @Value("${walt.partitions.count:0}")
+    int partitionCount;
+    @Value("${walt.partitions.cities:}")
+    String cityMapping;
+
+    private ExecutorService[] partitions;
+    private final Map<String, Integer> partitionByCityName = new HashMap<>();
+    private final Map<Long, AtomicInteger> pendingByCity = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        int count = partitionCount > 0 ? partitionCount : Runtime.getRuntime().availableProcessors();
+        partitions = new ExecutorService[count];
+        for (int i = 0; i < count; i++){
+            String name = "order-partition-" + i;
+            partitions[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (String entry: cityMapping.split(",")){
+            int separator = entry.lastIndexOf(':');
+            if (separator > 0){
+                // wraps around, so a mapping written for more partitions (or a negative one) still lands on one
+                partitionByCityName.put(entry.substring(0, separator).trim(),
+                        Math.floorMod(Integer.parseInt(entry.substring(separator + 1).trim()), count));
+            }
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(City city, Callable<T> order) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = pendingByCity.computeIfAbsent(city.getId(), id -> new AtomicInteger());
+        if (pending.incrementAndGet() > queueCapacity){
+            pending.decrementAndGet();
+            result.completeExceptionally(new OrderQueueFullException());
+            return result;
+        }
+        try {
+            partitions[partitionOf(city)].execute(() -> {
+                try {
+                    result.complete(order.call());
+                } catch (Throwable e){
+                    // an error too, otherwise the caller waits on the order forever
+                    result.completeExceptionally(e);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e){
+            pending.decrementAndGet();
+            result.completeExceptionally(new OrderQueueFullException());
+        }
+        return result;
+    }
+
+    public int pendingOrders(Long cityId) {
+        AtomicInteger pending = pendingByCity.get(cityId);
+        return pending == null ? 0 : pending.get();
+    }
+
+    public int partitionOf(City city) {
+        Integer mapped = partitionByCityName.get(city.getName());
+        return mapped != null ? mapped : (int) Math.floorMod(city.getId(), (long) partitions.length);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ExecutorService partition: partitions){
+            partition.shutdown();
+        }
+    }
+}
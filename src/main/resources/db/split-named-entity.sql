@@ -0,0 +1,29 @@
+-- Moves the rows of the single named_entity table into the per-entity tables.
+-- Run it once against a database created before City, Customer, Driver and Restaurant got tables of their own,
+-- before starting the application on it. Ids are kept, so deliveries keep pointing at the same rows.
+
+create table city (id bigint not null, name varchar(255), primary key (id));
+create table customer (id bigint not null, name varchar(255), address varchar(255), city_id bigint, primary key (id));
+create table driver (id bigint not null, name varchar(255), city_id bigint, primary key (id));
+create table restaurant (id bigint not null, name varchar(255), address varchar(255), city_id bigint, primary key (id));
+
+insert into city (id, name) select id, name from named_entity where dtype = 'City';
+insert into customer (id, name, address, city_id) select id, name, address, city_id from named_entity where dtype = 'Customer';
+insert into driver (id, name, city_id) select id, name, city_id from named_entity where dtype = 'Driver';
+insert into restaurant (id, name, address, city_id) select id, name, address, city_id from named_entity where dtype = 'Restaurant';
+
+-- fails if two entities of the same kind share a name, which has to be fixed by hand before running it again
+alter table city add constraint UK_CITY_NAME unique (name);
+alter table customer add constraint UK_CUSTOMER_NAME unique (name);
+alter table driver add constraint UK_DRIVER_NAME unique (name);
+alter table restaurant add constraint UK_RESTAURANT_NAME unique (name);
+
+-- also drops the foreign keys of delivery that pointed at named_entity
+drop table named_entity cascade;
+
+alter table customer add constraint FK_CUSTOMER_CITY foreign key (city_id) references city;
+alter table driver add constraint FK_DRIVER_CITY foreign key (city_id) references city;
+alter table restaurant add constraint FK_RESTAURANT_CITY foreign key (city_id) references city;
+alter table delivery add constraint FK_DELIVERY_DRIVER foreign key (driver_id) references driver;
+alter table delivery add constraint FK_DELIVERY_CUSTOMER foreign key (customer_id) references customer;
+alter table delivery add constraint FK_DELIVERY_RESTAURANT foreign key (restaurant_id) references restaurant;
@@ -1,23 +1,63 @@
 package com.walt;
 
+import com.walt.archive.DeliveryArchiver;
 import com.walt.dao.*;
 import com.walt.exceptions.CustomerDoesntExistException;
 import com.walt.exceptions.DifferentCityException;
 import com.walt.exceptions.NoAvailableDriverException;
+import com.walt.generator.DatasetSpec;
+import com.walt.generator.GeneratedDataset;
+import com.walt.generator.SyntheticDataGenerator;
+import com.walt.index.DriverAvailabilityIndex;
+import com.walt.index.DriverDistanceLeaderboard;
+import com.walt.index.DriverDistanceRollups;
+import com.walt.index.DriverLoadIndex;
+import com.walt.index.DriverRankReportCache;
+import com.walt.index.IdempotencyKeyCache;
+import com.walt.index.ReferenceDataCache;
+import com.walt.journal.DeliveryJournal;
+import com.walt.metrics.QueryStatistics;
 import com.walt.model.*;
+import com.walt.pipeline.OrderPipeline;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.assertj.core.util.Lists;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 
@@ -52,6 +92,51 @@ public class WaltTest {
     @Resource
     RestaurantRepository restaurantRepository;
 
+    @Resource
+    DriverAvailabilityIndex availabilityIndex;
+
+    @Resource
+    DriverDistanceLeaderboard leaderboard;
+
+    @Resource
+    DriverRankReportCache rankReportCache;
+
+    @Resource
+    MeterRegistry meterRegistry;
+
+    @Resource
+    SyntheticDataGenerator dataGenerator;
+
+    @Resource
+    DeliveryJournal deliveryJournal;
+
+    @Resource
+    OrderPipeline orderPipeline;
+
+    @Resource
+    EntityManagerFactory entityManagerFactory;
+
+    @Resource
+    QueryStatistics queryStatistics;
+
+    @Resource
+    DeliveryArchiver deliveryArchiver;
+
+    @Resource
+    DriverLoadIndex loadIndex;
+
+    @Resource
+    DriverDistanceRollups rollups;
+
+    @Resource
+    IdempotencyKeyCache idempotencyKeyCache;
+
+    @Resource
+    ApplicationContext applicationContext;
+
+    @Resource
+    ReferenceDataCache referenceDataCache;
+
     @BeforeEach()
     public void prepareData(){
 
@@ -115,6 +200,44 @@ public class WaltTest {
         driverRepository.saveAll(Lists.newArrayList(mary, patricia, jennifer, james, john, robert, david, daniel, noa, ofri, nata, dan, avigdor, eliezer));
     }
 
+    // a city of its own with one customer, one restaurant and a driver for every name
+    private CityFixture createCity(String... driverNames) {
+        City city = new City("city");
+        Customer customer = new Customer("Noy Asis", city, "address");
+        Restaurant restaurant = new Restaurant("resturant", city, "address");
+        List<Driver> drivers = new ArrayList<>();
+        for (String driverName: driverNames){
+            drivers.add(new Driver(driverName, city));
+        }
+        cityRepository.save(city);
+        customerRepository.save(customer);
+        restaurantRepository.save(restaurant);
+        driverRepository.saveAll(drivers);
+        return new CityFixture(city, customer, restaurant, drivers);
+    }
+
+    private static class CityFixture {
+        final City city;
+        final Customer customer;
+        final Restaurant restaurant;
+        final List<Driver> drivers;
+
+        CityFixture(City city, Customer customer, Restaurant restaurant, List<Driver> drivers) {
+            this.city = city;
+            this.customer = customer;
+            this.restaurant = restaurant;
+            this.drivers = drivers;
+        }
+    }
+
+    // fails once a service call runs more SQL statements than expected, e.g. one query per driver
+    private <T> T assertStatementsAtMost(long statements, Callable<T> call) throws Exception {
+        T result = call.call();
+        long executed = queryStatistics.getLastCall().getStatements();
+        Assertions.assertTrue(executed <= statements, "ran " + executed + " statements, expected at most " + statements);
+        return result;
+    }
+
     // *********************************************** basic tests *************************************************
     @Test
     public void testBasics(){
@@ -122,6 +245,95 @@ public class WaltTest {
         Assertions.assertEquals((driverRepository.findAllDriversByCity(cityRepository.findByName("Beer-Sheva")).size()), 2);
     }
 
+    @Test
+    public void generatedDataIsUsableByTheService() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        long deliveriesBefore = deliveryRepository.count();
+        GeneratedDataset dataset = dataGenerator.generate(new DatasetSpec(7, 3, 30, 6, 3, 300, 1.0, DatasetSpec.DEFAULT_END_TIME));
+        Assertions.assertEquals(deliveriesBefore + 300, deliveryRepository.count());
+        // the delivery times come from the spec, not from the clock
+        Assertions.assertEquals(HourSlot.of(DatasetSpec.DEFAULT_END_TIME), dataset.getFirstFreeHour());
+        // the first city is the biggest one
+        Assertions.assertTrue(dataset.getDrivers(0) > dataset.getDrivers(2));
+        City city = cityRepository.findByName("city-0");
+        Assertions.assertEquals(dataset.getDrivers(0), driverRepository.findAllDriversByCity(city).size());
+
+        Delivery delivery = waltService.createOrderAndAssignDriver(customerRepository.findByName("customer-0-0"),
+                restaurantRepository.findByName("restaurant-0-0"), HourSlot.start(dataset.getFirstFreeHour()));
+        Assertions.assertEquals(city.getId(), delivery.getDriver().getCity().getId());
+        Assertions.assertTrue(leaderboard.findInconsistentDrivers().isEmpty());
+    }
+
+    @Test
+    public void namesAreUniquePerEntity() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Assertions.assertThrows(DataIntegrityViolationException.class,
+                ()->{customerRepository.save(new Customer("Bach", tlv, "another address"));} );
+        // a driver may share the name of a customer, they live in different tables
+        driverRepository.save(new Driver("Bach", tlv));
+        Assertions.assertEquals(tlv.getId(), driverRepository.findByName("Bach").getCity().getId());
+    }
+
+    @Test
+    public void referenceDataIsReadFromTheSecondLevelCache() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Long driverId = driverRepository.findAllDriversByCity(tlv).get(0).getId();
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        // every repository call runs in its own transaction, so these can only be served by the shared caches
+        cityRepository.findByName("Tel-Aviv");
+        driverRepository.findAllDriversByCity(tlv);
+        driverRepository.findById(driverId);
+        Assertions.assertEquals(0, statistics.getPrepareStatementCount());
+        Assertions.assertEquals(2, statistics.getQueryCacheHitCount());
+        Assertions.assertTrue(statistics.getSecondLevelCacheHitCount() > 0);
+
+        // a committed change invalidates the cached results of its table
+        driverRepository.save(new Driver("Liszt", tlv));
+        Assertions.assertTrue(driverRepository.findAllDriversByCity(tlv).stream().anyMatch(driver -> driver.getName().equals("Liszt")));
+    }
+
+    @Test
+    public void secondReadOfReferenceEntitiesIsACacheHit() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Long restaurantId = restaurantRepository.findByName("cafe").getId();
+        Long driverId = driverRepository.findAllDriversByCity(tlv).get(0).getId();
+        entityManagerFactory.getCache().evictAll();
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        // the first read misses and loads the entity into its region
+        cityRepository.findById(tlv.getId());
+        restaurantRepository.findById(restaurantId);
+        driverRepository.findById(driverId);
+        statistics.clear();
+
+        // the second read runs in a new transaction and a new persistence context
+        Assertions.assertTrue(cityRepository.findById(tlv.getId()).isPresent());
+        Assertions.assertTrue(restaurantRepository.findById(restaurantId).isPresent());
+        Assertions.assertTrue(driverRepository.findById(driverId).isPresent());
+        Assertions.assertEquals(0, statistics.getPrepareStatementCount());
+        for (Class<?> type : Lists.newArrayList(City.class, Restaurant.class, Driver.class)) {
+            // restaurants and drivers resolve their city through the same region, so it can be hit more than once
+            Assertions.assertTrue(statistics.getDomainDataRegionStatistics(type.getName()).getHitCount() >= 1, type.getSimpleName());
+            Assertions.assertEquals(0, statistics.getDomainDataRegionStatistics(type.getName()).getMissCount(), type.getSimpleName());
+        }
+    }
+
+    @Test
+    public void serviceCallsDontRunAQueryPerDriver() throws Exception {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Date date = new Date();
+        // the customer lookup, the id and the insert
+        assertStatementsAtMost(3, () -> waltService.createOrderAndAssignDriver(customerRepository.findByName("Mozart"), restaurantRepository.findByName("meat"), date));
+        assertStatementsAtMost(0, () -> waltService.getDriverRankReport());
+        assertStatementsAtMost(0, () -> waltService.getDriverRankReportByCity(tlv));
+        assertStatementsAtMost(0, () -> waltService.getDriverRankReport(date, date));
+
+        Assertions.assertEquals(1, meterRegistry.get("walt.call.statements").tag("call", "getDriverRankReport()").summary().count());
+        Assertions.assertEquals(1, meterRegistry.get("walt.call.statements")
+                .tag("call", "createOrderAndAssignDriver(Customer,Restaurant,Date)").summary().count());
+    }
+
     // ************************************* createOrderAndAssignDriver tests ***************************************
     @Test
     public void nullCustomer(){
@@ -147,6 +359,35 @@ public class WaltTest {
                 ()->{waltService.createOrderAndAssignDriver(customer, restaurant, new Date());} );
     }
 
+    @Test
+    public void deletedCustomerIsEvictedFromTheCache() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Customer customer = customerRepository.findByName("Beethoven"); // lives in tlv
+        Restaurant restaurant = restaurantRepository.findByName("cafe"); // in tlv
+        waltService.createOrderAndAssignDriver(customer, restaurant, new Date());
+        waltService.createOrderAndAssignDriver(customer, restaurant, new Date());
+        Assertions.assertEquals(1, meterRegistry.get("walt.reference.cache.gets").tags("cache", "customer", "result", "miss").counter().count());
+        Assertions.assertEquals(1, meterRegistry.get("walt.reference.cache.gets").tags("cache", "customer", "result", "hit").counter().count());
+        deliveryRepository.deleteAll();
+        customerRepository.delete(customer);
+        Assertions.assertThrows(CustomerDoesntExistException.class,
+                ()->{waltService.createOrderAndAssignDriver(customer, restaurant, new Date());} );
+    }
+
+    @Test
+    public void renamedReferenceEntitiesAreEvictedFromTheCache() {
+        Assertions.assertEquals("cafe", referenceDataCache.findRestaurant("cafe").getName());
+        Assertions.assertEquals("Haifa", referenceDataCache.findCity("Haifa").getName());
+        Assertions.assertEquals("Mary", referenceDataCache.findDriver("Mary").getName());
+        Restaurant cafe = referenceDataCache.findRestaurant("cafe");
+        Assertions.assertEquals(1, meterRegistry.get("walt.reference.cache.gets").tags("cache", "restaurant", "result", "miss").counter().count());
+        Assertions.assertEquals(1, meterRegistry.get("walt.reference.cache.gets").tags("cache", "restaurant", "result", "hit").counter().count());
+
+        cafe.setName("espresso bar");
+        restaurantRepository.save(cafe);
+        Assertions.assertNull(referenceDataCache.findRestaurant("cafe"));
+        Assertions.assertEquals(cafe.getId(), referenceDataCache.findRestaurant("espresso bar").getId());
+    }
+
     @Test
     public void differentCities(){
         Customer customer = customerRepository.findByName("Chopin"); // lives in haifa
@@ -163,6 +404,20 @@ public class WaltTest {
                 ()->{waltService.createOrderAndAssignDriver(customer, restaurant, new Date());} );
     }
 
+    @Test
+    public void rejectedOrdersAreCountedByCity() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Customer customer = customerRepository.findByName("Adele"); // lives in eilat
+        Restaurant restaurant = restaurantRepository.findByName("buffet"); // in eilat
+        Assertions.assertThrows(NoAvailableDriverException.class,
+                ()->{waltService.createOrderAndAssignDriver(customer, restaurant, new Date());} );
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), new Date());
+
+        Assertions.assertEquals(1, meterRegistry.get("walt.order.rejected")
+                .tag("exception", "NoAvailableDriverException").tag("city", "Eilat").counter().count());
+        Assertions.assertEquals(1, meterRegistry.get("walt.order.stage").tag("stage", "save").timer().count());
+        Assertions.assertEquals(2, meterRegistry.get("walt.order.stage").tag("stage", "total").timer().count());
+    }
+
     @Test
     public void multipleAvailableDrivers() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
         Customer customer = customerRepository.findByName("Bach"); // lives in tlv
@@ -195,6 +450,387 @@ public class WaltTest {
                 ()->{waltService.createOrderAndAssignDriver(customer2, restaurant, date);} );
     }
 
+    @Test
+    public void driverIsBusyForTheWholeHour() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        CityFixture fixture = createCity("driver");
+        Customer customer = fixture.customer;
+        Restaurant restaurant = fixture.restaurant;
+        Driver driver = fixture.drivers.get(0);
+
+        long hour = HourSlot.start(HourSlot.of(new Date()) + 1).getTime();
+        waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour + TimeUnit.MINUTES.toMillis(5)));
+        // the driver is still on the first delivery 35 minutes later
+        Assertions.assertThrows(NoAvailableDriverException.class,
+                ()->{waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour + TimeUnit.MINUTES.toMillis(40)));} );
+        Delivery delivery = waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour + TimeUnit.MINUTES.toMillis(65)));
+        Assertions.assertEquals(driver.getId(), delivery.getDriver().getId());
+    }
+
+    @Test
+    public void leastBusyDriverIsAssigned() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        CityFixture fixture = createCity("busy", "idle");
+        Customer customer = fixture.customer;
+        Restaurant restaurant = fixture.restaurant;
+        Driver busy = fixture.drivers.get(0);
+        Driver idle = fixture.drivers.get(1);
+
+        long hour = HourSlot.start(HourSlot.of(new Date()) + 1).getTime();
+        Assertions.assertEquals(busy.getId(), waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour)).getDriver().getId());
+        Assertions.assertEquals(idle.getId(), waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour + TimeUnit.HOURS.toMillis(1))).getDriver().getId());
+        Assertions.assertEquals(idle.getId(), waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour)).getDriver().getId());
+        // busy has one delivery while idle already has two
+        Assertions.assertEquals(busy.getId(), waltService.createOrderAndAssignDriver(customer, restaurant, new Date(hour + TimeUnit.HOURS.toMillis(2))).getDriver().getId());
+    }
+
+    @Test
+    public void nextAvailableSlotIsTheFirstHourWithAFreeDriver() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        CityFixture fixture = createCity("driver");
+        Customer customer = fixture.customer;
+        Restaurant restaurant = fixture.restaurant;
+        Driver driver = fixture.drivers.get(0);
+
+        long hour = HourSlot.of(new Date()) + 1;
+        Date from = new Date(HourSlot.start(hour).getTime() + TimeUnit.MINUTES.toMillis(10));
+        Date to = HourSlot.start(hour + 3);
+        Assertions.assertEquals(from, waltService.findNextAvailableSlot(customer, restaurant, from, to));
+        waltService.createOrderAndAssignDriver(customer, restaurant, from);
+        waltService.createOrderAndAssignDriver(customer, restaurant, HourSlot.start(hour + 1));
+
+        Assertions.assertEquals(HourSlot.start(hour + 2), waltService.findNextAvailableSlot(customer, restaurant, from, to));
+        Assertions.assertEquals(HourSlot.start(hour + 2), waltService.createOrderAtNextAvailableSlot(customer, restaurant, from, to).getDeliveryTime());
+        Assertions.assertEquals(HourSlot.start(hour + 3), waltService.createOrderAtNextAvailableSlot(customer, restaurant, from, to).getDeliveryTime());
+        // the only driver is busy for the whole window now
+        Assertions.assertThrows(NoAvailableDriverException.class,
+                ()->{waltService.findNextAvailableSlot(customer, restaurant, from, to);} );
+    }
+
+    @Test
+    public void fullHourIsRejectedFastUntilADriverIsFree() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        CityFixture fixture = createCity("driver");
+        City city = fixture.city;
+        Customer customer = fixture.customer;
+        Restaurant restaurant = fixture.restaurant;
+        Driver driver = fixture.drivers.get(0);
+
+        Date date = new Date();
+        Delivery delivery = waltService.createOrderAndAssignDriver(customer, restaurant, date);
+        for (int i = 0; i < 3; i++){
+            Assertions.assertThrows(NoAvailableDriverException.class,
+                    ()->{waltService.createOrderAndAssignDriver(customer, restaurant, date);} );
+        }
+        // the first rejection found the hour full, the others didn't look at the drivers
+        Assertions.assertEquals(2, meterRegistry.get("walt.order.fast.rejected").tag("city", "city").counter().count());
+
+        deliveryRepository.delete(delivery);
+        // the deleted delivery no longer counts towards the driver's distance
+        Assertions.assertEquals(0, leaderboard.getRankingByCity(city.getId(), 1).get(0).getTotalDistance());
+        Assertions.assertTrue(leaderboard.findInconsistentDrivers().isEmpty());
+        Assertions.assertEquals(driver.getId(), waltService.createOrderAndAssignDriver(customer, restaurant, date).getDriver().getId());
+        Assertions.assertThrows(NoAvailableDriverException.class,
+                ()->{waltService.createOrderAndAssignDriver(customer, restaurant, date);} );
+
+        Driver newcomer = driverRepository.save(new Driver("newcomer", city));
+        Assertions.assertEquals(newcomer.getId(), waltService.createOrderAndAssignDriver(customer, restaurant, date).getDriver().getId());
+    }
+
+    @Test
+    public void availabilityIndexIsSeededFromDeliveries() {
+        CityFixture fixture = createCity("driver");
+        Customer customer = fixture.customer;
+        Restaurant restaurant = fixture.restaurant;
+        Driver driver = fixture.drivers.get(0);
+
+        Date date = new Date();
+        deliveryRepository.save(new Delivery(driver, restaurant, customer, date));
+        availabilityIndex.rebuild();
+        Assertions.assertThrows(NoAvailableDriverException.class,
+                ()->{waltService.createOrderAndAssignDriver(customer, restaurant, date);} );
+    }
+
+    @Test
+    public void driverBookedOutsideOfTheIndexIsSkipped() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        CityFixture fixture = createCity("first", "second");
+        Customer customer = fixture.customer;
+        Restaurant restaurant = fixture.restaurant;
+        Driver first = fixture.drivers.get(0);
+        Driver second = fixture.drivers.get(1);
+
+        // the index doesn't know about this delivery, so the unique constraint on (driver, hour) has to catch it
+        Date date = new Date();
+        deliveryRepository.save(new Delivery(first, restaurant, customer, date));
+        Delivery delivery = waltService.createOrderAndAssignDriver(customer, restaurant, date);
+        Assertions.assertEquals(second.getId(), delivery.getDriver().getId());
+        Assertions.assertThrows(NoAvailableDriverException.class,
+                ()->{waltService.createOrderAndAssignDriver(customer, restaurant, date);} );
+    }
+
+    @Test
+    public void concurrentOrdersDontDoubleBookDrivers() throws Exception {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Customer customer = customerRepository.findByName("Bach");
+        Restaurant restaurant = restaurantRepository.findByName("cafe");
+        int driversInCity = driverRepository.findAllDriversByCity(tlv).size();
+        Date date = new Date();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Delivery>> orders = new ArrayList<>();
+        for (int i = 0; i < driversInCity * 2; i++){
+            orders.add(executor.submit(() -> waltService.createOrderAndAssignDriver(customer, restaurant, date)));
+        }
+        Set<Long> assignedDrivers = new HashSet<>();
+        int rejected = 0;
+        for (Future<Delivery> order: orders){
+            try {
+                Assertions.assertTrue(assignedDrivers.add(order.get().getDriver().getId()));
+            } catch (ExecutionException e){
+                Assertions.assertTrue(e.getCause() instanceof NoAvailableDriverException);
+                rejected++;
+            }
+        }
+        executor.shutdown();
+        Assertions.assertEquals(driversInCity, assignedDrivers.size());
+        Assertions.assertEquals(driversInCity, rejected);
+    }
+
+    @Test
+    public void journaledDeliveriesAreWrittenAndReplayed() throws IOException, DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Path journal = Files.createTempFile("walt-journal", ".dat");
+        Path crashedJournal = Files.createTempFile("walt-journal-crashed", ".dat");
+        // only explicit flushes, so the copy below is taken before anything was written
+        ReflectionTestUtils.setField(deliveryJournal, "flushMillis", TimeUnit.HOURS.toMillis(1));
+        deliveryJournal.open(journal);
+        Date date = new Date();
+        Delivery delivery = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date, "order-1");
+        Assertions.assertEquals(0, deliveryRepository.count());
+        Files.copy(journal, crashedJournal, StandardCopyOption.REPLACE_EXISTING);
+        deliveryJournal.close();
+        Assertions.assertEquals(1, deliveryRepository.findAllDeliveriesByDriver(delivery.getDriver()).size());
+        Assertions.assertNotNull(deliveryRepository.findByIdempotencyKey("order-1"));
+
+        // as if the process died before the flush, the journal still holds the delivery and its key
+        deliveryRepository.deleteAll();
+        deliveryJournal.open(crashedJournal);
+        Assertions.assertEquals(1, deliveryRepository.findAllDeliveriesByDriver(delivery.getDriver()).size());
+        Assertions.assertTrue(availabilityIndex.bookedDrivers(delivery.getDriver().getCity().getId(), date).contains(delivery.getDriver().getId()));
+        ReflectionTestUtils.invokeMethod(idempotencyKeyCache, "init");
+        Delivery retried = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date, "order-1");
+        Assertions.assertEquals(delivery.getDriver().getId(), retried.getDriver().getId());
+        deliveryJournal.close();
+        Assertions.assertEquals(1, deliveryRepository.count());
+    }
+
+    @Test
+    public void replayOfAlreadyWrittenDeliveriesDropsNothing() throws IOException, DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Path journal = Files.createTempFile("walt-journal", ".dat");
+        Path crashedJournal = Files.createTempFile("walt-journal-crashed", ".dat");
+        ReflectionTestUtils.setField(deliveryJournal, "flushMillis", TimeUnit.HOURS.toMillis(1));
+        deliveryJournal.open(journal);
+        Date date = new Date();
+        Delivery delivery = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date, "order-1");
+        Files.copy(journal, crashedJournal, StandardCopyOption.REPLACE_EXISTING);
+        deliveryJournal.close();
+
+        // as if the process died after the delivery was written but before the journal's header said so
+        deliveryJournal.open(crashedJournal);
+        deliveryJournal.close();
+        Assertions.assertEquals(1, deliveryRepository.count());
+        Assertions.assertEquals(0, meterRegistry.find("walt.journal.dropped").counters().stream().mapToDouble(Counter::count).sum());
+        Assertions.assertFalse(Files.exists(crashedJournal.resolveSibling(crashedJournal.getFileName() + ".dead")));
+        Assertions.assertTrue(availabilityIndex.bookedDrivers(delivery.getDriver().getCity().getId(), date).contains(delivery.getDriver().getId()));
+    }
+
+    @Test
+    public void conflictingJournaledDeliveryIsTakenBackOut() throws IOException, DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Path journal = Files.createTempFile("walt-journal", ".dat");
+        ReflectionTestUtils.setField(deliveryJournal, "flushMillis", TimeUnit.HOURS.toMillis(1));
+        deliveryJournal.open(journal);
+        Customer customer = customerRepository.findByName("Bach");
+        Restaurant restaurant = restaurantRepository.findByName("cafe");
+        Date date = new Date();
+        Delivery journaled = waltService.createOrderAndAssignDriver(customer, restaurant, date);
+        // another instance booked the same driver for that hour, for another order, before the journal was flushed
+        deliveryRepository.save(new Delivery(journaled.getDriver(), restaurant, customerRepository.findByName("Katy"), date));
+        deliveryJournal.close();
+
+        Assertions.assertEquals(1, deliveryRepository.count());
+        Assertions.assertEquals(1, meterRegistry.get("walt.journal.dropped").tag("reason", "driver_booked").counter().count());
+        Assertions.assertEquals(1, Files.readAllLines(journal.resolveSibling(journal.getFileName() + ".dead")).size());
+        Assertions.assertEquals(0, waltService.getDriverRankReport().stream()
+                .filter(driverDistance -> driverDistance.getDriver().getId().equals(journaled.getDriver().getId()))
+                .findFirst().get().getTotalDistance());
+        Assertions.assertTrue(waltService.getDriverRankReport(date, date).stream()
+                .filter(driverDistance -> driverDistance.getDriver().getId().equals(journaled.getDriver().getId()))
+                .allMatch(driverDistance -> driverDistance.getTotalDistance() == 0));
+        // the driver still is booked for that hour, by the delivery that was saved
+        Assertions.assertTrue(availabilityIndex.bookedDrivers(journaled.getDriver().getCity().getId(), date).contains(journaled.getDriver().getId()));
+    }
+
+    @Test
+    public void retriedOrderGetsTheOriginalDelivery() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Customer customer = customerRepository.findByName("Mozart");
+        Restaurant restaurant = restaurantRepository.findByName("meat");
+        Date date = new Date();
+        long deliveries = deliveryRepository.count();
+
+        Delivery original = waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-1");
+        Assertions.assertSame(original, waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-1"));
+        Assertions.assertEquals(deliveries + 1, deliveryRepository.count());
+
+        // once the key is gone from memory it's found on the saved delivery
+        ReflectionTestUtils.invokeMethod(idempotencyKeyCache, "init");
+        Delivery retried = waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-1");
+        Assertions.assertEquals(original.getId(), retried.getId());
+        Assertions.assertEquals(original.getDriver().getName(), retried.getDriver().getName());
+        Assertions.assertEquals(deliveries + 1, deliveryRepository.count());
+        Assertions.assertEquals(2, meterRegistry.get("walt.order.duplicate").counter().count());
+
+        Delivery another = waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-2");
+        Assertions.assertNotEquals(original.getId(), another.getId());
+    }
+
+    // ************************************* createOrderAndAssignDriverAsync Tests ***************************************
+    @Test
+    public void retryOfAFailedOrStuckOrderDoesntBlock() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Customer customer = customerRepository.findByName("Mozart");
+        Restaurant restaurant = restaurantRepository.findByName("meat");
+        Date date = new Date();
+        Customer broken = new Customer("Mozart", customer.getCity(), customer.getAddress()) {
+            @Override
+            public String getName() {
+                throw new AssertionError("broken customer");
+            }
+        };
+
+        // an error in the first attempt frees the key, so the retry places the order
+        Assertions.assertThrows(AssertionError.class, () -> waltService.createOrderAndAssignDriver(broken, restaurant, date, "order-1"));
+        Assertions.assertNotNull(waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-1"));
+
+        // a retry waiting on an order that failed with an error gets the error itself
+        CompletableFuture<Delivery> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new AssertionError("failed order"));
+        idempotencyKeyCache.putIfAbsent("order-2", failed);
+        Assertions.assertThrows(AssertionError.class, () -> waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-2"));
+
+        // and one waiting on an order that never finishes gives up
+        ReflectionTestUtils.setField(idempotencyKeyCache, "waitMillis", 100L);
+        idempotencyKeyCache.putIfAbsent("order-3", new CompletableFuture<>());
+        Assertions.assertThrows(IllegalStateException.class, () -> waltService.createOrderAndAssignDriver(customer, restaurant, date, "order-3"));
+    }
+
+    @Test
+    public void asyncOrdersAreAssignedByTheCityWorker() throws Exception {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Customer customer = customerRepository.findByName("Bach");
+        Restaurant restaurant = restaurantRepository.findByName("cafe");
+        int driversInCity = driverRepository.findAllDriversByCity(tlv).size();
+        Date date = new Date();
+
+        List<CompletableFuture<Delivery>> orders = new ArrayList<>();
+        for (int i = 0; i < driversInCity + 1; i++){
+            orders.add(waltService.createOrderAndAssignDriverAsync(customer, restaurant, date));
+        }
+        Set<Long> assignedDrivers = new HashSet<>();
+        for (int i = 0; i < driversInCity; i++){
+            Delivery delivery = orders.get(i).get(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(delivery.getId());
+            Assertions.assertTrue(assignedDrivers.add(delivery.getDriver().getId()));
+        }
+        // orders of a city are handled in the order they were submitted, so only the last one finds no driver
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                ()->{orders.get(driversInCity).get(10, TimeUnit.SECONDS);} );
+        Assertions.assertTrue(e.getCause() instanceof NoAvailableDriverException);
+    }
+
+    @Test
+    public void ordersOfACityRunOnItsOwningPartition() throws Exception {
+        for (City city: cityRepository.findAll()){
+            String thread = orderPipeline.submit(city, () -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals("order-partition-" + orderPipeline.partitionOf(city), thread);
+        }
+    }
+
+    @Test
+    public void orderThatFailsWithAnErrorStillCompletes() {
+        City city = cityRepository.findByName("Haifa");
+        CompletableFuture<Object> order = orderPipeline.submit(city, () -> { throw new OutOfMemoryError("no room for the order"); });
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> order.get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof OutOfMemoryError);
+    }
+
+    @Test
+    public void mappedPartitionsWrapAround() {
+        orderPipeline.shutdown();
+        ReflectionTestUtils.setField(orderPipeline, "partitionCount", 4);
+        ReflectionTestUtils.setField(orderPipeline, "cityMapping", "Tel-Aviv:-1,Haifa:6");
+        orderPipeline.start();
+        Assertions.assertEquals(3, orderPipeline.partitionOf(cityRepository.findByName("Tel-Aviv")));
+        Assertions.assertEquals(2, orderPipeline.partitionOf(cityRepository.findByName("Haifa")));
+    }
+
+    // ************************************* createOrdersAndAssignDrivers Tests ***************************************
+    @Test
+    public void batchOfOrdersIsBalancedAcrossDrivers() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Restaurant cafe = restaurantRepository.findByName("cafe");
+        List<Driver> drivers = driverRepository.findAllDriversByCity(tlv);
+        long hour = HourSlot.start(HourSlot.of(new Date()) + 1).getTime();
+        List<OrderRequest> orders = new ArrayList<>();
+        for (int i = 0; i < drivers.size(); i++){
+            orders.add(new OrderRequest(customerRepository.findByName("Bach"), cafe, new Date(hour)));
+        }
+        for (int i = 0; i < drivers.size(); i++){
+            orders.add(new OrderRequest(customerRepository.findByName("Katy"), cafe, new Date(hour + TimeUnit.HOURS.toMillis(1 + i % 2))));
+        }
+        orders.add(new OrderRequest(customerRepository.findByName("Chopin"), cafe, new Date(hour)));
+        orders.add(new OrderRequest(customerRepository.findByName("Bach"), cafe, new Date(hour)));
+
+        List<OrderResult> results = waltService.createOrdersAndAssignDrivers(orders);
+        Assertions.assertEquals(orders.size(), results.size());
+        for (int i = 0; i < drivers.size() * 2; i++){
+            Assertions.assertTrue(results.get(i).isSuccessful());
+            Assertions.assertNotNull(results.get(i).getDelivery().getId());
+        }
+        Assertions.assertTrue(results.get(drivers.size() * 2).getFailure() instanceof DifferentCityException);
+        Assertions.assertTrue(results.get(drivers.size() * 2 + 1).getFailure() instanceof NoAvailableDriverException);
+        // the batch is spread so every driver in the city gets exactly two deliveries
+        for (Driver driver: drivers){
+            Assertions.assertEquals(2, deliveryRepository.findAllDeliveriesByDriver(driver).size());
+        }
+        // the statement budget grows with the batch, so a batch isn't reported as going over it
+        Assertions.assertNull(meterRegistry.find("walt.call.over.budget").tag("call", "createOrdersAndAssignDrivers(List)").counter());
+    }
+
+    @Test
+    public void batchThatFailsPartwayKeepsTheJournaledOrders() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Restaurant cafe = restaurantRepository.findByName("cafe");
+        Date date = new Date();
+        DeliveryJournal failingJournal = Mockito.mock(DeliveryJournal.class);
+        Mockito.when(failingJournal.isEnabled()).thenReturn(true);
+        // the first delivery makes it into the journal, the second finds the disk gone
+        Mockito.doNothing().doThrow(new IllegalStateException("journal unavailable")).when(failingJournal).append(Mockito.any());
+        WaltServiceImpl service = new WaltServiceImpl();
+        applicationContext.getAutowireCapableBeanFactory().autowireBean(service);
+        ReflectionTestUtils.setField(service, "deliveryJournal", failingJournal);
+        List<OrderRequest> orders = Lists.newArrayList(
+                new OrderRequest(customerRepository.findByName("Bach"), cafe, date),
+                new OrderRequest(customerRepository.findByName("Katy"), cafe, date),
+                new OrderRequest(customerRepository.findByName("Beethoven"), cafe, date));
+
+        List<OrderResult> results = service.createOrdersAndAssignDrivers(orders);
+        Assertions.assertTrue(results.get(0).isSuccessful());
+        Assertions.assertTrue(results.get(1).getFailure() instanceof IllegalStateException);
+        Assertions.assertTrue(results.get(2).getFailure() instanceof IllegalStateException);
+        // only the journaled delivery keeps its driver booked and counts towards the driver's distance
+        Driver driver = results.get(0).getDelivery().getDriver();
+        DriverAvailabilityIndex.BookedDrivers booked = availabilityIndex.bookedDrivers(tlv.getId(), date);
+        Assertions.assertEquals(1, booked.size());
+        Assertions.assertTrue(booked.contains(driver.getId()));
+        List<DriverDistance> ranking = leaderboard.getRankingByCity(tlv.getId(), 1);
+        Assertions.assertEquals(driver.getId(), ranking.get(0).getDriver().getId());
+        Assertions.assertEquals((long) results.get(0).getDelivery().getDistance(), ranking.get(0).getTotalDistance());
+    }
+
     // ************************************* getDriverRankReport Tests ***************************************
     @Test
     public void getSpecificDriverRankReport() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
@@ -237,7 +873,271 @@ public class WaltTest {
         Assertions.assertEquals(deliveriesTotalDistance, driversTotalDistance);
     }
 
+    @Test
+    public void driverRankReportIsSortedByTotalDistance() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Date date = new Date();
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Mozart"), restaurantRepository.findByName("meat"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Beethoven"), restaurantRepository.findByName("cafe"), date);
+
+        List<DriverDistance> driverDistanceList = waltService.getDriverRankReport();
+        Assertions.assertEquals(((List<Driver>) driverRepository.findAll()).size(), driverDistanceList.size());
+        for (int i = 1; i < driverDistanceList.size(); i++){
+            Assertions.assertTrue(driverDistanceList.get(i - 1).getTotalDistance() >= driverDistanceList.get(i).getTotalDistance());
+        }
+
+        List<DriverDistance> topTwo = waltService.getDriverRankReport(2);
+        Assertions.assertEquals(2, topTwo.size());
+        Assertions.assertEquals(driverDistanceList.get(0).getTotalDistance(), topTwo.get(0).getTotalDistance());
+    }
+
+    @Test
+    public void pagedAndStreamedRankReportsMatchTheFullReport() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Date date = new Date();
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Mozart"), restaurantRepository.findByName("meat"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), date);
+
+        List<DriverDistance> report = waltService.getDriverRankReport();
+        List<DriverDistance> paged = new ArrayList<>();
+        RankCursor cursor = null;
+        do {
+            RankPage page = waltService.getDriverRankReportPage(cursor, 2);
+            Assertions.assertTrue(page.getDriverDistances().size() <= 2);
+            paged.addAll(page.getDriverDistances());
+            cursor = page.getNext();
+        } while (cursor != null);
+        List<DriverDistance> streamed = waltService.streamDriverRankReport().collect(Collectors.toList());
+
+        Assertions.assertEquals(report.size(), paged.size());
+        Assertions.assertEquals(report.size(), streamed.size());
+        for (int i = 0; i < report.size(); i++){
+            Assertions.assertEquals(report.get(i).getDriver().getId(), paged.get(i).getDriver().getId());
+            Assertions.assertEquals(report.get(i).getTotalDistance(), paged.get(i).getTotalDistance());
+            Assertions.assertEquals(report.get(i).getDriver().getId(), streamed.get(i).getDriver().getId());
+        }
+
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        RankPage tlvPage = waltService.getDriverRankReportPageByCity(tlv, null, Integer.MAX_VALUE - 1);
+        Assertions.assertNull(tlvPage.getNext());
+        Assertions.assertEquals(waltService.getDriverRankReportByCity(tlv).size(), tlvPage.getDriverDistances().size());
+    }
+
+    @Test
+    public void rankReportsListEveryDriverOnceWhileDistancesChange() throws Exception {
+        List<Driver> drivers = Lists.newArrayList(driverRepository.findAll());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<?> updates = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 200000; i++){
+                    leaderboard.recordDelivery(drivers.get(i % drivers.size()), i % 3);
+                }
+            }, executor);
+            while (!updates.isDone()){
+                List<Long> report = leaderboard.getRanking(Integer.MAX_VALUE).stream().map(driverDistance -> driverDistance.getDriver().getId()).collect(Collectors.toList());
+                List<Long> streamed = leaderboard.streamRanking(DriverDistanceLeaderboard.ALL_CITIES).map(driverDistance -> driverDistance.getDriver().getId()).collect(Collectors.toList());
+                List<Long> page = leaderboard.getRankingPage(DriverDistanceLeaderboard.ALL_CITIES, null, drivers.size() + 1).getDriverDistances().stream().map(driverDistance -> driverDistance.getDriver().getId()).collect(Collectors.toList());
+                for (List<Long> driverIds: Lists.newArrayList(report, streamed, page)){
+                    Assertions.assertEquals(drivers.size(), driverIds.size());
+                    Assertions.assertEquals(drivers.size(), new HashSet<>(driverIds).size());
+                }
+            }
+            updates.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void leaderboardIsConsistentWithDeliveries() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Date date = new Date();
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Beethoven"), restaurantRepository.findByName("cafe"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Rachmaninoff"), restaurantRepository.findByName("mexican"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Jane"), restaurantRepository.findByName("chinese"), date);
+        Assertions.assertTrue(leaderboard.findInconsistentDrivers().isEmpty());
+
+        List<DriverDistance> beforeRebuild = waltService.getDriverRankReport();
+        leaderboard.rebuild();
+        List<DriverDistance> afterRebuild = waltService.getDriverRankReport();
+        Assertions.assertEquals(beforeRebuild.size(), afterRebuild.size());
+        for (int i = 0; i < beforeRebuild.size(); i++){
+            Assertions.assertEquals(beforeRebuild.get(i).getDriver().getId(), afterRebuild.get(i).getDriver().getId());
+            Assertions.assertEquals(beforeRebuild.get(i).getTotalDistance(), afterRebuild.get(i).getTotalDistance());
+        }
+    }
+
+    @Test
+    public void rankReportOverADayRangeOnlyCountsDeliveriesOnThoseDays() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        long today = HourSlot.dayOf(HourSlot.of(new Date()));
+        Date tomorrow = HourSlot.start((today + 1) * 24 + 10);
+        Date nextWeek = HourSlot.start((today + 7) * 24 + 10);
+        Delivery first = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), tomorrow);
+        Delivery second = waltService.createOrderAndAssignDriver(customerRepository.findByName("Katy"), restaurantRepository.findByName("cafe"), tomorrow);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), nextWeek);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), tomorrow);
+
+        List<DriverDistance> tomorrowInTlv = waltService.getDriverRankReportByCity(tlv, tomorrow, tomorrow);
+        Assertions.assertEquals(driverRepository.findAllDriversByCity(tlv).size(), tomorrowInTlv.size());
+        long total = 0;
+        for (int i = 0; i < tomorrowInTlv.size(); i++){
+            total += tomorrowInTlv.get(i).getTotalDistance();
+            if (i > 0){
+                Assertions.assertTrue(tomorrowInTlv.get(i - 1).getTotalDistance() >= tomorrowInTlv.get(i).getTotalDistance());
+            }
+        }
+        Assertions.assertEquals((long) first.getDistance() + (long) second.getDistance(), total);
+
+        long allWeek = 0;
+        for (DriverDistance driverDistance: waltService.getDriverRankReport(tomorrow, nextWeek)){
+            allWeek += driverDistance.getTotalDistance();
+        }
+        long allTime = 0;
+        for (DriverDistance driverDistance: waltService.getDriverRankReport()){
+            allTime += driverDistance.getTotalDistance();
+        }
+        Assertions.assertEquals(allTime, allWeek);
+    }
+
+    @Test
+    public void rankReportOverADayRangeMergesTheCitiesInOrder() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Date date = new Date();
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Mozart"), restaurantRepository.findByName("meat"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), date);
+
+        List<DriverDistance> allCities = waltService.getDriverRankReport(date, date);
+        List<DriverDistance> expected = new ArrayList<>();
+        for (City city: cityRepository.findAll()){
+            expected.addAll(waltService.getDriverRankReportByCity(city, date, date));
+        }
+        expected.sort(Comparator.comparing(DriverDistance::getTotalDistance).reversed()
+                .thenComparing(driverDistance -> driverDistance.getDriver().getId()));
+
+        Assertions.assertEquals(expected.size(), allCities.size());
+        for (int i = 0; i < expected.size(); i++){
+            Assertions.assertEquals(expected.get(i).getDriver().getId(), allCities.get(i).getDriver().getId());
+            Assertions.assertEquals(expected.get(i).getTotalDistance(), allCities.get(i).getTotalDistance());
+        }
+    }
+
+    @Test
+    public void archivedDeliveriesKeepCountingInTheReportsAndLoads() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        long today = HourSlot.dayOf(HourSlot.of(new Date()));
+        Date longAgo = HourSlot.start((today - 130) * 24 + 10);
+        Date lessLongAgo = HourSlot.start((today - 100) * 24 + 10);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), longAgo);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Katy"), restaurantRepository.findByName("cafe"), longAgo);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), lessLongAgo);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), new Date());
+        List<DriverDistance> before = waltService.getDriverRankReport();
+        List<DriverDistance> lessLongAgoBefore = waltService.getDriverRankReport(lessLongAgo, lessLongAgo);
+        Driver leastBusyBefore = loadIndex.leastBusy(tlv.getId(), driver -> true);
+
+        long deliveries = deliveryRepository.count();
+        // more than one batch
+        ReflectionTestUtils.setField(deliveryArchiver, "batchSize", 2);
+        Assertions.assertEquals(3, deliveryArchiver.archive(HourSlot.start((today - 90) * 24)));
+        Assertions.assertEquals(deliveries - 3, deliveryRepository.count());
+
+        loadIndex.rebuild();
+        leaderboard.rebuild();
+        rollups.rebuild();
+        Assertions.assertTrue(leaderboard.findInconsistentDrivers().isEmpty());
+        Assertions.assertEquals(leastBusyBefore.getId(), loadIndex.leastBusy(tlv.getId(), driver -> true).getId());
+        List<DriverDistance> after = waltService.getDriverRankReport();
+        Assertions.assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++){
+            Assertions.assertEquals(before.get(i).getDriver().getId(), after.get(i).getDriver().getId());
+            Assertions.assertEquals(before.get(i).getTotalDistance(), after.get(i).getTotalDistance());
+        }
+
+        long allTime = 0;
+        for (DriverDistance driverDistance: after){
+            allTime += driverDistance.getTotalDistance();
+        }
+        long overTheRange = 0;
+        for (DriverDistance driverDistance: waltService.getDriverRankReport(longAgo, new Date())){
+            overTheRange += driverDistance.getTotalDistance();
+        }
+        Assertions.assertEquals(allTime, overTheRange, 1);
+        // archived days keep their own distances, whatever day of the month the range starts on
+        List<DriverDistance> lessLongAgoAfter = waltService.getDriverRankReport(lessLongAgo, lessLongAgo);
+        Assertions.assertEquals(lessLongAgoBefore.size(), lessLongAgoAfter.size());
+        for (int i = 0; i < lessLongAgoBefore.size(); i++){
+            Assertions.assertEquals(lessLongAgoBefore.get(i).getDriver().getId(), lessLongAgoAfter.get(i).getDriver().getId());
+            Assertions.assertEquals(lessLongAgoBefore.get(i).getTotalDistance(), lessLongAgoAfter.get(i).getTotalDistance());
+        }
+    }
+
+    @Test
+    public void rankReportOverADayRangeCountsDriversThatMovedOnce() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Date date = new Date();
+        Delivery delivery = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), date);
+        Driver moved = driverRepository.findById(delivery.getDriver().getId()).get();
+        moved.setCity(cityRepository.findByName("Haifa"));
+        driverRepository.save(moved);
+
+        // the distance stays in the rollup of the city it was made in, the driver is now ranked with Haifa
+        List<DriverDistance> allCities = waltService.getDriverRankReport(date, date);
+        Assertions.assertEquals(driverRepository.count(), allCities.size());
+        Assertions.assertEquals(allCities.size(), allCities.stream().map(driverDistance -> driverDistance.getDriver().getId()).distinct().count());
+        DriverDistance movedDistance = allCities.stream()
+                .filter(driverDistance -> driverDistance.getDriver().getId().equals(moved.getId()))
+                .findFirst().get();
+        Assertions.assertEquals((long) delivery.getDistance(), movedDistance.getTotalDistance());
+        Assertions.assertEquals("Haifa", movedDistance.getDriver().getCity().getName());
+        for (int i = 1; i < allCities.size(); i++){
+            Assertions.assertTrue(allCities.get(i - 1).getTotalDistance() >= allCities.get(i).getTotalDistance());
+        }
+
+        // rebuilt from the database, the distance is kept under the same city it was recorded under
+        long day = HourSlot.dayOf(HourSlot.of(date));
+        List<Map<Long, Long>> before = new ArrayList<>();
+        List<Map<Long, Long>> after = new ArrayList<>();
+        for (List<Map<Long, Long>> reports: Lists.newArrayList(before, after)){
+            for (City city: cityRepository.findAll()){
+                reports.add(rollups.getRanking(city.getId(), day, day, Integer.MAX_VALUE).stream()
+                        .collect(Collectors.toMap(driverDistance -> driverDistance.getDriver().getId(), DriverDistance::getTotalDistance)));
+            }
+            rollups.rebuild();
+        }
+        Assertions.assertEquals(before, after);
+    }
+
+    @Test
+    public void rebuiltRollupsFloorHoursBefore1970() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        // the last half hour of 1969, hour slot -1 of day -1
+        Date date = new Date(-TimeUnit.MINUTES.toMillis(30));
+        Delivery delivery = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), date);
+        rollups.rebuild();
+        Long tlv = cityRepository.findByName("Tel-Aviv").getId();
+        Assertions.assertEquals((long) delivery.getDistance(), rollups.getRanking(tlv, -1, -1, 1).get(0).getTotalDistance());
+        Assertions.assertEquals(0, rollups.getRanking(tlv, 0, 0, 1).get(0).getTotalDistance());
+    }
+
     // ************************************* getDriverRankReportByCity Tests ***************************************
+    @Test
+    public void rankReportByCityIsCachedUntilTheCityChanges() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        List<DriverDistance> first = waltService.getDriverRankReportByCity(tlv);
+        Assertions.assertSame(first, waltService.getDriverRankReportByCity(tlv));
+
+        // a delivery in another city leaves the report of tel aviv as it is
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), new Date());
+        Assertions.assertSame(first, waltService.getDriverRankReportByCity(tlv));
+
+        Delivery delivery = waltService.createOrderAndAssignDriver(customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"), new Date());
+        List<DriverDistance> refreshed = waltService.getDriverRankReportByCity(tlv);
+        Assertions.assertNotSame(first, refreshed);
+        Assertions.assertTrue(refreshed.stream().anyMatch(driverDistance ->
+                driverDistance.getDriver().getId().equals(delivery.getDriver().getId())
+                        && driverDistance.getTotalDistance() == (long) delivery.getDistance()));
+        Assertions.assertTrue(rankReportCache.getHitRatio() > 0);
+    }
+
     @Test
     public void getSpecificDriverRankReportByCity() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
         City nyc = new City("NYC");
@@ -257,6 +1157,25 @@ public class WaltTest {
         }
     }
 
+    @Test
+    public void driverRankReportByCityIsSortedByTotalDistance() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
+        Date date = new Date();
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Beethoven"), restaurantRepository.findByName("cafe"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Rachmaninoff"), restaurantRepository.findByName("cafe"), date);
+        waltService.createOrderAndAssignDriver(customerRepository.findByName("Chopin"), restaurantRepository.findByName("vegan"), date);
+
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        List<DriverDistance> driverDistanceList = waltService.getDriverRankReportByCity(tlv);
+        Assertions.assertEquals(driverRepository.findAllDriversByCity(tlv).size(), driverDistanceList.size());
+        for (int i = 0; i < driverDistanceList.size(); i++){
+            Assertions.assertEquals(tlv.getId(), driverDistanceList.get(i).getDriver().getCity().getId());
+            if (i > 0){
+                Assertions.assertTrue(driverDistanceList.get(i - 1).getTotalDistance() >= driverDistanceList.get(i).getTotalDistance());
+            }
+        }
+        Assertions.assertEquals(1, waltService.getDriverRankReportByCity(tlv, 1).size());
+    }
+
     @Test
     public void getAllDriversRankReportByCity() throws DifferentCityException, NoAvailableDriverException, CustomerDoesntExistException {
         Date date = new Date();